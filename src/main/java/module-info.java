@@ -3,6 +3,7 @@ module org.wst {
     requires javafx.fxml;
     //requires jnativehook;
     requires java.logging;
+    requires java.management;
 
     opens org.wst;
     exports org.wst;
@@ -7,6 +7,8 @@ import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.image.Image;
 import javafx.stage.Stage;
+import org.wst.helper.BackgroundExecutor;
+import org.wst.helper.FileManager;
 
 import java.io.IOException;
 
@@ -34,8 +36,9 @@ public class App extends Application {
         stage.show();
         stage.setOnCloseRequest(t -> {
             System.out.println("Closing app and all background Threads!");
+            FileManager.getInstance().close();
+            BackgroundExecutor.getInstance().shutdown();
             Platform.exit();
-            System.exit(0);
         });
         stage1 = stage;
         controller.setStageAndListeners(stage);
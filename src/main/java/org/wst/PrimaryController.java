@@ -22,6 +22,7 @@ import org.wst.model.TableEntry;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 
 public class PrimaryController {
 
@@ -85,6 +86,7 @@ public class PrimaryController {
     @FXML
     private void initClipboardService() {
         this.clipboardService = new ClipboardService();
+        clipboardService.setExecutor(BackgroundExecutor.getInstance().getIoExecutor());
         inputArea.setText("Empty Clipboard!");
 
         // setup service to check clipboard every second
@@ -437,7 +439,7 @@ public class PrimaryController {
                     for (TableEntry e : items) {
                         keywords.add(e.getKeyword());
                     }
-                    bibTable.getItems().removeAll(items);
+                    bibTable.getItems().removeAll(new HashSet<>(items)); // contains() of the selection list is linear
                     fileManager.deleteEntriesFromFile(keywords, this.tableLabel);
                 } else {
                     throwAlert("File/s not deleted!", "Nothing selected!");
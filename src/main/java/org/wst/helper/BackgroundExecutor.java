@@ -0,0 +1,146 @@
+package org.wst.helper;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Singleton Class!
+ * All background work of the app runs here, on named daemon threads in four lanes:
+ * io: tasks that wait on files or the UI (loading, searching, edits), uses virtual threads on JDK 21+
+ * and a bounded pool of platform threads on older JDKs
+ * cpu: a ForkJoinPool for parallel parsing and reformatting, one thread per core
+ * scan: a ForkJoinPool for directory scans, more threads than cores since they mostly wait on the disk
+ * writer: a single thread that does all (scheduled) file writes
+ * <p>
+ * shutdown() stops all lanes in order, it is also run as shutdown hook of the JVM
+ */
+public class BackgroundExecutor {
+    private BackgroundExecutor() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        ExecutorService virtual = newVirtualThreadExecutor("bib-io-");
+        if (virtual != null) {
+            this.io = virtual;
+        } else {
+            int threads = Math.max(4, cores);
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), namedDaemonFactory("bib-io-"));
+            pool.allowCoreThreadTimeOut(true);
+            this.io = pool;
+        }
+        this.cpu = new ForkJoinPool(cores, namedWorkerFactory("bib-cpu-"), null, false);
+        this.scan = new ForkJoinPool(Math.max(8, 2 * cores), namedWorkerFactory("bib-scan-"), null, false);
+        this.writer = Executors.newSingleThreadScheduledExecutor(namedDaemonFactory("bib-writer-"));
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "bib-shutdown"));
+    }
+
+    private final static BackgroundExecutor backgroundExecutor = new BackgroundExecutor();
+
+    public static BackgroundExecutor getInstance() {
+        return backgroundExecutor;
+    }
+
+    private final static long shutdownTimeoutMillis = 5000;
+
+    private final ExecutorService io;
+    private final ForkJoinPool cpu;
+    private final ForkJoinPool scan;
+    private final ScheduledExecutorService writer;
+    private volatile boolean shutdown;
+
+    /**
+     * Runs a task that blocks on I/O, e.g. a JavaFX Task
+     *
+     * @param task task to run
+     */
+    public void io(Runnable task) {
+        io.execute(task);
+    }
+
+    public ExecutorService getIoExecutor() {
+        return io;
+    }
+
+    public ForkJoinPool getCpuPool() {
+        return cpu;
+    }
+
+    public ForkJoinPool getScanPool() {
+        return scan;
+    }
+
+    public ScheduledExecutorService getWriter() {
+        return writer;
+    }
+
+    /**
+     * @return true if the io lane uses virtual threads
+     */
+    public boolean isVirtual() {
+        return !(io instanceof ThreadPoolExecutor);
+    }
+
+    /**
+     * Stops taking new work, lets running work finish for a few seconds and then interrupts it
+     * The io and cpu lanes are stopped first, since they can still hand writes to the writer
+     */
+    public synchronized void shutdown() {
+        if (shutdown) return;
+        shutdown = true;
+        stop(io, "io");
+        stop(cpu, "cpu");
+        stop(scan, "scan");
+        stop(writer, "writer");
+    }
+
+    private static void stop(ExecutorService executor, String name) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(shutdownTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                System.err.println("Background " + name + " tasks did not finish in time, interrupting them");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static ThreadFactory namedDaemonFactory(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static ForkJoinPool.ForkJoinWorkerThreadFactory namedWorkerFactory(String prefix) {
+        return pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName(prefix + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Virtual threads are only final since JDK 21, the app is built for 11 so they are created by reflection
+     *
+     * @return executor with a new virtual thread per task, or null if not supported
+     */
+    private static ExecutorService newVirtualThreadExecutor(String prefix) {
+        if (Runtime.version().feature() < 21) return null;
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            Method perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) perTask.invoke(null, factory);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.err.println("Virtual threads not available, using platform threads");
+            return null;
+        }
+    }
+}
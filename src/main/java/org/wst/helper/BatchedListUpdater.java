@@ -0,0 +1,87 @@
+package org.wst.helper;
+
+import javafx.application.Platform;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntConsumer;
+
+/**
+ * Hands items from a background thread to a list of the UI in batches
+ * A batch is sent when N items are waiting or T milliseconds passed since the last batch,
+ * at most one Platform.runLater is pending at any time, so the FX pulse is never flooded
+ * <p>
+ * add() and flush() must only be called from a single producer thread
+ *
+ * @param <T> type of the list items
+ */
+public class BatchedListUpdater<T> {
+    public final static int defaultBatchSize = 500;
+    public final static long defaultIntervalMillis = 100;
+
+    private final List<T> target;
+    private final int batchSize;
+    private final long intervalNanos;
+    private final ConcurrentLinkedQueue<T> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private IntConsumer onFlush;
+    private int delivered;
+    private int pending;
+    private long lastFlush = System.nanoTime();
+
+    public BatchedListUpdater(List<T> target) {
+        this(target, defaultBatchSize, defaultIntervalMillis);
+    }
+
+    /**
+     * @param target         list that is changed on the FX thread
+     * @param batchSize      amount of items that triggers a batch
+     * @param intervalMillis time after which waiting items are sent anyway
+     */
+    public BatchedListUpdater(List<T> target, int batchSize, long intervalMillis) {
+        this.target = target;
+        this.batchSize = batchSize;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+    }
+
+    /**
+     * @param onFlush called on the FX thread after each batch, with the amount of items delivered so far
+     */
+    public void setOnFlush(IntConsumer onFlush) {
+        this.onFlush = onFlush;
+    }
+
+    public void add(T item) {
+        queue.add(item);
+        if (++pending >= batchSize || System.nanoTime() - lastFlush >= intervalNanos) {
+            flush();
+        }
+    }
+
+    /**
+     * Sends all waiting items, if a batch is already pending it will take them along
+     */
+    public void flush() {
+        pending = 0;
+        lastFlush = System.nanoTime();
+        if (scheduled.compareAndSet(false, true)) {
+            Platform.runLater(this::drain);
+        }
+    }
+
+    private void drain() {
+        scheduled.set(false);
+        List<T> batch = new ArrayList<>();
+        T item;
+        while ((item = queue.poll()) != null) {
+            batch.add(item);
+        }
+        if (batch.isEmpty()) return;
+        target.addAll(batch);
+        delivered += batch.size();
+        if (onFlush != null) onFlush.accept(delivered);
+    }
+}
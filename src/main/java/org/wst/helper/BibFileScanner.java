@@ -0,0 +1,333 @@
+package org.wst.helper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Searches a directory tree for .bib files with a ForkJoinPool
+ * <p>
+ * Every task walks its subtree with Files.walkFileTree, as long as the pool has idle threads
+ * a subdirectory is split off into a new task instead of being walked inline.
+ * Symbolic links are followed, every directory and file is only visited once (by its file key
+ * or real path), so links that point back into the tree can not cause a loop or duplicates
+ * <p>
+ * The ScanRules are checked in preVisitDirectory, so ignored or too deep subtrees are
+ * skipped without being listed at all
+ * <p>
+ * A scan also records a ScanCache.Snapshot of the tree, a rescan with that snapshot only lists
+ * the directories that changed since
+ * <p>
+ * Found files are passed on as soon as they are found, the calls come from different
+ * threads but are never concurrent
+ */
+public class BibFileScanner {
+    public final static String extension = ".bib";
+
+    private final ForkJoinPool pool;
+
+    public BibFileScanner(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public List<File> scan(File root, Consumer<File> onFile, BooleanSupplier cancelled) {
+        return scan(root, new ScanRules(), onFile, cancelled);
+    }
+
+    /**
+     * @param root      directory to search
+     * @param rules     ignore patterns and limits of the scan
+     * @param onFile    called for every .bib file, can be null
+     * @param cancelled checked for every file, the scan stops early if true
+     * @return all .bib files found, in no particular order
+     */
+    public List<File> scan(File root, ScanRules rules, Consumer<File> onFile, BooleanSupplier cancelled) {
+        return run(root, rules, null, onFile, cancelled).files;
+    }
+
+    /**
+     * Scans the root again, based on the snapshot of an earlier scan with the same rules:
+     * directories with an unchanged modified time are taken from the snapshot without being listed,
+     * only changed directories are listed and new ones are walked completely.
+     * The .bib files of unchanged directories are passed to the consumer as well
+     *
+     * @param previous snapshot of the last scan, null to walk the whole tree
+     * @return snapshot of this scan, it is incomplete if the scan was cancelled or stopped by a limit
+     */
+    public ScanCache.Snapshot rescan(File root, ScanRules rules, ScanCache.Snapshot previous,
+                                     Consumer<File> onFile, BooleanSupplier cancelled) {
+        return run(root, rules, previous, onFile, cancelled).snapshot;
+    }
+
+    private Scan run(File root, ScanRules rules, ScanCache.Snapshot previous, Consumer<File> onFile, BooleanSupplier cancelled) {
+        Scan scan = new Scan(root.toPath(), rules, previous, onFile, cancelled);
+        ScanCache.Directory cachedRoot = previous == null ? null : previous.get("");
+        pool.invoke(cachedRoot != null ? new RevalidateTask(scan.root, "", cachedRoot, scan) : new DirectoryTask(scan.root, scan));
+        scan.snapshot.setComplete(!scan.isStopped());
+        if (scan.limitReached) {
+            System.err.println("Scan stopped after " + rules.getMaxFiles() + " files: " + root);
+        }
+        return scan;
+    }
+
+    /**
+     * State shared by all tasks of one scan
+     */
+    private static class Scan {
+        private final Set<Object> directories = ConcurrentHashMap.newKeySet();
+        private final Set<Object> visitedFiles = ConcurrentHashMap.newKeySet();
+        private final List<File> files = Collections.synchronizedList(new ArrayList<>());
+        private final AtomicLong visitedCount = new AtomicLong();
+        private final Path root;
+        private final ScanRules rules;
+        private final ScanCache.Snapshot previous;
+        private final ScanCache.Snapshot snapshot;
+        private final Consumer<File> onFile;
+        private final BooleanSupplier cancelled;
+        private volatile boolean limitReached;
+
+        Scan(Path root, ScanRules rules, ScanCache.Snapshot previous, Consumer<File> onFile, BooleanSupplier cancelled) {
+            this.root = root;
+            this.rules = rules;
+            this.previous = previous;
+            this.snapshot = new ScanCache.Snapshot(root);
+            this.onFile = onFile;
+            this.cancelled = cancelled;
+        }
+
+        boolean isStopped() {
+            return limitReached || cancelled.getAsBoolean();
+        }
+
+        /**
+         * Counts a file against the max-files limit
+         *
+         * @return false if the limit is reached
+         */
+        boolean visit() {
+            if (visitedCount.incrementAndGet() > rules.getMaxFiles()) {
+                limitReached = true;
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * @return true if the directory is skipped by the rules
+         */
+        boolean skip(Path dir) {
+            if (dir.equals(root)) return false;
+            Path relative = root.relativize(dir);
+            return relative.getNameCount() > rules.getMaxDepth() || rules.isIgnored(relative, true);
+        }
+
+        boolean isBibFile(Path path, BasicFileAttributes attrs) {
+            return attrs.isRegularFile() && path.getFileName().toString().endsWith(extension)
+                    && !rules.isIgnored(root.relativize(path), false);
+        }
+
+        String relativeOf(Path path) {
+            return root.relativize(path).toString();
+        }
+
+        String childOf(String relative, String name) {
+            return relative.isEmpty() ? name : relative + root.getFileSystem().getSeparator() + name;
+        }
+
+        /**
+         * Adds the directory to the snapshot and to the subdirectories of its parent,
+         * the parent is always recorded before its children
+         *
+         * @param relative path of the directory relative to the root
+         */
+        ScanCache.Directory record(String relative, long modified) {
+            ScanCache.Directory directory = new ScanCache.Directory(modified);
+            snapshot.put(relative, directory);
+            if (!relative.isEmpty()) {
+                int separator = relative.lastIndexOf(root.getFileSystem().getSeparator());
+                ScanCache.Directory parent = snapshot.get(separator < 0 ? "" : relative.substring(0, separator));
+                if (parent != null) parent.addSubdirectory(relative.substring(separator + 1));
+            }
+            return directory;
+        }
+
+        synchronized void found(Path path, ScanCache.Directory parent) {
+            if (parent != null) parent.addFile(path.getFileName().toString());
+            File file = path.toFile();
+            files.add(file);
+            if (onFile != null) onFile.accept(file);
+        }
+    }
+
+    /**
+     * Walks a subtree, splits off subdirectories while the pool has idle threads
+     */
+    private static class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Path dir;
+        private final Scan scan;
+
+        DirectoryTask(Path dir, Scan scan) {
+            this.dir = dir;
+            this.scan = scan;
+        }
+
+        @Override
+        protected void compute() {
+            List<ForkJoinTask<?>> forked = new ArrayList<>();
+            try {
+                Files.walkFileTree(dir, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attrs) {
+                        if (scan.isStopped()) return FileVisitResult.TERMINATE;
+                        if (scan.skip(path)) return FileVisitResult.SKIP_SUBTREE;
+                        if (!path.equals(dir) && getSurplusQueuedTaskCount() <= 0) {
+                            // idle threads would steal it, the new task marks the directory as visited itself
+                            forked.add(new DirectoryTask(path, scan).fork());
+                            return FileVisitResult.SKIP_SUBTREE;
+                        }
+                        if (!scan.directories.add(keyOf(path, attrs))) return FileVisitResult.SKIP_SUBTREE;
+                        scan.record(scan.relativeOf(path), attrs.lastModifiedTime().toMillis());
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+                        if (scan.isStopped() || !scan.visit()) return FileVisitResult.TERMINATE;
+                        if (scan.isBibFile(path, attrs) && scan.visitedFiles.add(keyOf(path, attrs))) {
+                            scan.found(path, scan.snapshot.get(scan.relativeOf(path.getParent())));
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path path, IOException e) {
+                        if (e instanceof FileSystemLoopException) {
+                            System.err.println("Skipped symbolic link loop: " + path);
+                        }
+                        return FileVisitResult.CONTINUE; // e.g. no permission, the rest is still searched
+                    }
+                });
+            } catch (IOException e) {
+                System.err.println("Error searching directory: " + dir);
+                e.printStackTrace();
+            }
+            for (ForkJoinTask<?> task : forked) {
+                task.join();
+            }
+        }
+    }
+
+    /**
+     * Checks a directory of the previous snapshot: if its modified time is the same, its files and
+     * subdirectories are taken from the snapshot, else it is listed again.
+     * Subdirectories are split off into new tasks while the pool has idle threads, else checked inline
+     */
+    private static class RevalidateTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Path dir;
+        private final String relative;
+        private final ScanCache.Directory cached;
+        private final Scan scan;
+
+        RevalidateTask(Path dir, String relative, ScanCache.Directory cached, Scan scan) {
+            this.dir = dir;
+            this.relative = relative;
+            this.cached = cached;
+            this.scan = scan;
+        }
+
+        @Override
+        protected void compute() {
+            List<ForkJoinTask<?>> forked = new ArrayList<>();
+            revalidate(dir, relative, cached, forked);
+            for (ForkJoinTask<?> task : forked) {
+                task.join();
+            }
+        }
+
+        private void revalidate(Path dir, String relative, ScanCache.Directory cached, List<ForkJoinTask<?>> forked) {
+            if (scan.isStopped()) return;
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(dir, BasicFileAttributes.class);
+            } catch (IOException e) {
+                return; // removed since the last scan
+            }
+            if (!attrs.isDirectory() || !scan.directories.add(keyOf(dir, attrs))) return;
+            long modified = attrs.lastModifiedTime().toMillis();
+            ScanCache.Directory directory = scan.record(relative, modified);
+
+            if (modified == cached.getModified()) {
+                for (String name : cached.getFiles()) {
+                    if (scan.isStopped() || !scan.visit()) return;
+                    scan.found(dir.resolve(name), directory);
+                }
+                for (String name : cached.getSubdirectories()) {
+                    subdirectory(dir.resolve(name), scan.childOf(relative, name), forked);
+                }
+                return;
+            }
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path path : stream) {
+                    if (scan.isStopped() || !scan.visit()) break;
+                    BasicFileAttributes childAttrs;
+                    try {
+                        childAttrs = Files.readAttributes(path, BasicFileAttributes.class);
+                    } catch (IOException e) {
+                        continue; // e.g. broken symbolic link
+                    }
+                    if (childAttrs.isDirectory()) {
+                        if (!scan.skip(path)) subdirectory(path, scan.childOf(relative, path.getFileName().toString()), forked);
+                    } else if (scan.isBibFile(path, childAttrs) && scan.visitedFiles.add(keyOf(path, childAttrs))) {
+                        scan.found(path, directory);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Error searching directory: " + dir);
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Known subdirectories are checked the same way, new ones are walked completely
+         */
+        private void subdirectory(Path path, String relative, List<ForkJoinTask<?>> forked) {
+            ScanCache.Directory previous = scan.previous.get(relative);
+            if (previous == null) {
+                forked.add(new DirectoryTask(path, scan).fork());
+            } else if (getSurplusQueuedTaskCount() <= 0) {
+                forked.add(new RevalidateTask(path, relative, previous, scan).fork());
+            } else {
+                revalidate(path, relative, previous, forked);
+            }
+        }
+    }
+
+    /**
+     * The file key (device and inode on unix) identifies a file independent of the path it was found by,
+     * if the file system has none the real path is used
+     */
+    private static Object keyOf(Path path, BasicFileAttributes attrs) {
+        Object key = attrs.fileKey();
+        if (key != null) return key;
+        try {
+            return path.toRealPath();
+        } catch (IOException e) {
+            return path.toAbsolutePath().normalize();
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package org.wst.helper;
+
+import org.wst.model.BibEntry;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Hand written scanner that finds BibTeX entries in any text, replaces the regular expressions of the FormatChecker
+ * <p>
+ * The text is read in a single forward pass and every char is looked at a fixed number of times,
+ * so the time is linear in the length of the input. This also holds for text without any '@',
+ * for deeply nested or unbalanced braces and for many broken entries. No strings are created while scanning,
+ * the parts of an entry are only cut out when they are asked for
+ * <p>
+ * An entry is "@type{key, name = value, ...}", the key may contain any char except ,{}\()%"'#~= (also '@').
+ * The special blocks "@string{name = value}", "@preamble{...}" and "@comment{...}" are recognised as well.
+ * Every '@' that is followed by a head starts a candidate, a candidate ends with the '}' that closes its first '{'.
+ * Candidates inside a complete entry are part of its values. If an entry never closes, the complete candidates
+ * inside it are returned instead. Like in the BibReader an '@' at the start of a line ends all open candidates,
+ * so a single missing brace does not swallow the rest of the text. Braces are counted by a BraceMatcher,
+ * which also tells where the braces of a broken entry are missing
+ */
+public class BibLexer {
+
+    public enum Kind {
+        ENTRY,
+        STRING,
+        PREAMBLE,
+        COMMENT
+    }
+
+    private final static Kind[] specialKinds = {Kind.STRING, Kind.PREAMBLE, Kind.COMMENT};
+
+    private final CharSequence text;
+    private final int end;
+    private int pos;
+    private boolean finished;
+
+    private final BraceMatcher braces = new BraceMatcher();
+    private BraceMatcher.Imbalance firstImbalance;
+    private boolean lineStart = true;
+    private int headAt = -1, headTypeEnd = -1;
+    private final ArrayList<Entry> open = new ArrayList<>();
+    private final ArrayList<Entry> pending = new ArrayList<>();
+    private final ArrayDeque<Entry> ready = new ArrayDeque<>();
+
+    public BibLexer(CharSequence text) {
+        this(text, 0, text.length());
+    }
+
+    /**
+     * @param text  text to scan, all offsets of the entries are positions inside it
+     * @param start first char to scan
+     * @param end   index after the last char to scan
+     */
+    public BibLexer(CharSequence text, int start, int end) {
+        this.text = text;
+        this.pos = start;
+        this.end = end;
+    }
+
+    /**
+     * Scans only as far as needed to find the next entry
+     *
+     * @return next entry or special block, null at the end of the text
+     */
+    public Entry next() {
+        while (ready.isEmpty() && pos < end) {
+            step(text.charAt(pos), pos++);
+        }
+        if (ready.isEmpty() && !finished) {
+            finished = true;
+            closeAll(end, false);
+        }
+        return ready.poll();
+    }
+
+    private void step(char c, int i) {
+        boolean startsLine = lineStart;
+        if (c == '\n') lineStart = true;
+        else if (c != ' ' && c != '\t' && c != '\r') lineStart = false;
+
+        boolean started = false;
+        Entry top = open.isEmpty() ? null : open.get(open.size() - 1);
+        if (top != null && top.keyEnd == -1) {
+            if (c == ',') top.keyEnd = i;
+            else if (!isKeyChar(c)) dropTop();
+        }
+
+        if (c == '@') {
+            if (startsLine) closeAll(i, true);
+            headAt = i;
+            headTypeEnd = -1;
+        } else if (headAt >= 0) {
+            if (headTypeEnd == -1 && isWordChar(c)) {
+                // type goes on
+            } else if (i > headAt + 1 && Character.isWhitespace(c)) {
+                if (headTypeEnd == -1) headTypeEnd = i;
+            } else if (i > headAt + 1 && c == '{') {
+                started = openCandidate(headTypeEnd == -1 ? i : headTypeEnd, i);
+                headAt = -1;
+            } else {
+                headAt = -1;
+            }
+        }
+
+        // braces outside of any candidate do not matter, the first brace of the outermost one starts the matcher
+        if (open.isEmpty() || started) return;
+        if (braces.accept(c, i) < 0 && braces.getDepth() == open.get(open.size() - 1).level) {
+            complete(open.remove(open.size() - 1), i);
+        }
+    }
+
+    /**
+     * @return true if this is the outermost candidate, its brace started the BraceMatcher
+     */
+    private boolean openCandidate(int typeEnd, int brace) {
+        Entry entry = new Entry(text, headAt, headAt + 1, typeEnd);
+        entry.bodyStart = brace + 1;
+        if (entry.kind == Kind.ENTRY) entry.keyEnd = -1; // checked while the next chars are scanned
+        boolean outermost = open.isEmpty();
+        if (outermost) braces.start(brace);
+        entry.level = outermost ? 0 : braces.getDepth();
+        open.add(entry);
+        return outermost;
+    }
+
+    /**
+     * The head of the top candidate is not valid, its braces still count for the candidates around it
+     */
+    private void dropTop() {
+        open.remove(open.size() - 1);
+    }
+
+    private void complete(Entry entry, int brace) {
+        entry.end = brace + 1;
+        if (entry.kind == Kind.ENTRY) {
+            int comma = entry.keyEnd;
+            entry.keyStart = trimStart(entry.bodyStart, comma);
+            entry.keyEnd = trimEnd(entry.keyStart, comma);
+            entry.bodyStart = comma + 1;
+        }
+        // complete candidates inside this one are part of its values
+        while (!pending.isEmpty() && pending.get(pending.size() - 1).start > entry.start) {
+            pending.remove(pending.size() - 1);
+        }
+        if (open.isEmpty()) ready.add(entry);
+        else pending.add(entry);
+    }
+
+    /**
+     * All open candidates are broken, the complete ones inside them are entries on their own
+     *
+     * @param stoppedAt   end of the text or the '@' at the start of a line
+     * @param interrupted if a new entry starts
+     */
+    private void closeAll(int stoppedAt, boolean interrupted) {
+        if (!open.isEmpty() && firstImbalance == null) {
+            Entry outermost = open.get(0);
+            if (outermost.kind == Kind.ENTRY && outermost.keyEnd >= 0) {
+                firstImbalance = braces.getImbalance(outermost.start, stoppedAt, interrupted);
+            }
+        }
+        open.clear();
+        ready.addAll(pending);
+        pending.clear();
+    }
+
+    /**
+     * @return where the braces of the first entry that was never closed are unbalanced, null if there is none so far
+     */
+    public BraceMatcher.Imbalance getFirstImbalance() {
+        return firstImbalance;
+    }
+
+    private int trimStart(int from, int to) {
+        while (from < to && Character.isWhitespace(text.charAt(from))) from++;
+        return from;
+    }
+
+    private int trimEnd(int from, int to) {
+        while (to > from && Character.isWhitespace(text.charAt(to - 1))) to--;
+        return to;
+    }
+
+    static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    /**
+     * NOTE: ^,{}\()%"'#~= not allowed in keyword, but '@' is allowed
+     */
+    static boolean isKeyChar(char c) {
+        switch (c) {
+            case ',':
+            case '{':
+            case '}':
+            case '\\':
+            case '(':
+            case ')':
+            case '%':
+            case '"':
+            case '\'':
+            case '#':
+            case '~':
+            case '=':
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * An entry or special block found by the lexer, all parts are kept as offsets into the scanned text
+     */
+    public static class Entry {
+        private final CharSequence text;
+        private final Kind kind;
+        private final int start;
+        private final int typeStart, typeEnd;
+        private int keyStart = -1, keyEnd = -2;
+        private int bodyStart;
+        private int end;
+        private int level;
+        private List<Field> fields;
+
+        private Entry(CharSequence text, int start, int typeStart, int typeEnd) {
+            this.text = text;
+            this.start = start;
+            this.typeStart = typeStart;
+            this.typeEnd = typeEnd;
+            this.kind = kindOf(text, typeStart, typeEnd);
+        }
+
+        private static Kind kindOf(CharSequence text, int from, int to) {
+            for (Kind kind : specialKinds) {
+                String name = kind.name();
+                if (name.length() != to - from) continue;
+                boolean equal = true;
+                for (int i = 0; i < name.length() && equal; i++) {
+                    equal = Character.toUpperCase(text.charAt(from + i)) == name.charAt(i);
+                }
+                if (equal) return kind;
+            }
+            return Kind.ENTRY;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * @return type as written, e.g. "Article"
+         */
+        public String getType() {
+            return text.subSequence(typeStart, typeEnd).toString();
+        }
+
+        /**
+         * @return trimmed keyword, null for special blocks
+         */
+        public String getKey() {
+            return kind == Kind.ENTRY ? text.subSequence(keyStart, keyEnd).toString() : null;
+        }
+
+        /**
+         * @return offset of the leading '@'
+         */
+        public int getStart() {
+            return start;
+        }
+
+        /**
+         * @return offset after the closing '}'
+         */
+        public int getEnd() {
+            return end;
+        }
+
+        /**
+         * @return the raw entry from '@' to the closing '}'
+         */
+        public String getText() {
+            return text.subSequence(start, end).toString();
+        }
+
+        /**
+         * @return raw text between the keyword (or the opening brace) and the closing brace
+         */
+        public String getBody() {
+            return text.subSequence(Math.min(bodyStart, end - 1), end - 1).toString();
+        }
+
+        /**
+         * The fields are split when they are asked for the first time, see BibEntry.findFields
+         *
+         * @return fields in the order of the text, empty for preamble and comment blocks
+         */
+        public List<Field> getFields() {
+            if (fields == null) {
+                if (kind == Kind.ENTRY || kind == Kind.STRING) {
+                    int[] offsets = BibEntry.findFields(text, Math.min(bodyStart, end - 1), end - 1);
+                    fields = new ArrayList<>(offsets.length / 4);
+                    for (int i = 0; i < offsets.length; i += 4) {
+                        fields.add(new Field(text, offsets[i], offsets[i + 1], offsets[i + 2], offsets[i + 3]));
+                    }
+                } else {
+                    fields = Collections.emptyList();
+                }
+            }
+            return fields;
+        }
+
+        /**
+         * @return the entry as model, it shares the scanned text
+         */
+        public BibEntry toBibEntry() {
+            return new BibEntry(text, start, end, typeStart, typeEnd, kind == Kind.ENTRY ? keyStart : -1, keyEnd, bodyStart);
+        }
+    }
+
+    /**
+     * A "name = value" pair of an entry, the value is kept raw with its closures, e.g. {A title} or "A" # b
+     */
+    public static class Field {
+        private final CharSequence text;
+        private final int nameStart, nameEnd, valueStart, valueEnd;
+
+        private Field(CharSequence text, int nameStart, int nameEnd, int valueStart, int valueEnd) {
+            this.text = text;
+            this.nameStart = nameStart;
+            this.nameEnd = nameEnd;
+            this.valueStart = valueStart;
+            this.valueEnd = valueEnd;
+        }
+
+        public String getName() {
+            return text.subSequence(nameStart, nameEnd).toString();
+        }
+
+        public String getValue() {
+            return text.subSequence(valueStart, valueEnd).toString();
+        }
+
+        public int getValueStart() {
+            return valueStart;
+        }
+
+        public int getValueEnd() {
+            return valueEnd;
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package org.wst.helper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Streaming reader that splits BibTeX text into single entry blocks in one forward pass
+ * The boundaries of an entry are found with a small brace-depth state machine,
+ * so every char of the input is only looked at once, no matter how large an entry is
+ * <p>
+ * Line endings are normalized to "\r\n" (like the old line based reading did),
+ * all offsets of a block refer to that normalized text
+ * If a document builder is set, the whole normalized text is appended to it while reading
+ */
+public class BibReader implements Closeable {
+
+    private enum State {
+        OUTSIDE,
+        COMMENT,
+        HEAD,
+        BODY
+    }
+
+    private final Reader reader;
+    private final CharSequence text;
+    private int textPos, textEnd;
+    private final char[] buffer = new char[8192];
+    private int bufferPos, bufferLen;
+    private int peeked = -1;
+    private boolean pendingNewline;
+    private int lastChar = -1;
+
+    private StringBuilder document;
+    private final StringBuilder block = new StringBuilder();
+    private State state = State.OUTSIDE;
+    private final BraceMatcher braces = new BraceMatcher();
+    private int brokenBlocks;
+    private BraceMatcher.Imbalance firstImbalance;
+    private int offset;
+    private int blockStart;
+    private boolean lineStart = true;
+    private boolean onlyBlanksInLine = true;
+
+    public BibReader(Reader reader) {
+        this.reader = reader;
+        this.text = null;
+    }
+
+    /**
+     * Reads a range of text that is already in memory, without copying it
+     * The text should already be normalized, the offsets of the blocks are then
+     * positions inside the given text
+     *
+     * @param text  text to read from
+     * @param start first char to read
+     * @param end   index after the last char to read
+     */
+    public BibReader(CharSequence text, int start, int end) {
+        this.reader = null;
+        this.text = text;
+        this.textPos = start;
+        this.textEnd = end;
+        this.offset = start;
+    }
+
+    public BibReader(ReadableByteChannel channel, Charset charset) {
+        this(newReader(channel, charset));
+    }
+
+    /**
+     * Malformed input is replaced, the same way a FileReader does it
+     *
+     * @param channel channel to decode
+     * @param charset charset of the channel
+     * @return reader for the channel
+     */
+    public static Reader newReader(ReadableByteChannel channel, Charset charset) {
+        return Channels.newReader(channel, charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE), -1);
+    }
+
+    /**
+     * All normalized chars that are read will also be appended to the given builder,
+     * this way the file content can be kept without reading the file twice
+     *
+     * @param document builder for the complete file content, can be null
+     */
+    public void setDocumentBuilder(StringBuilder document) {
+        this.document = document;
+    }
+
+    /**
+     * @return amount of normalized chars read so far
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * Reads until the next complete entry block is found
+     * A block starts with '@' outside of any other block and ends with the '}' that closes the
+     * first opening brace. Lines starting with '%' outside a block are ignored
+     * If a new line starts with '@' while a block is still open, the open block is seen as
+     * broken and dropped, so a single missing brace does not swallow the rest of the file
+     * Braces are counted by the BraceMatcher, escaped braces (\{, \}) do not count
+     *
+     * @return the next block or null if the end of the input is reached
+     * @throws IOException if the underlying reader fails
+     */
+    public Block next() throws IOException {
+        int c;
+        while ((c = nextChar()) != -1) {
+            char ch = (char) c;
+            switch (state) {
+                case OUTSIDE:
+                    if (lineStart && ch == '%') state = State.COMMENT;
+                    else if (ch == '@') startBlock();
+                    break;
+                case COMMENT:
+                    if (ch == '\n') state = State.OUTSIDE;
+                    break;
+                case HEAD:
+                    if (ch == '@') {
+                        startBlock();
+                        break;
+                    }
+                    block.append(ch);
+                    if (ch == '{') {
+                        braces.start(offset - 1);
+                        state = State.BODY;
+                    } else if (!Character.isLetterOrDigit(ch) && !Character.isWhitespace(ch) && ch != '_') {
+                        state = State.OUTSIDE;
+                    }
+                    break;
+                case BODY:
+                    if (ch == '@' && onlyBlanksInLine) {
+                        addImbalance(offset - 1, true);
+                        startBlock();
+                        break;
+                    }
+                    block.append(ch);
+                    if (braces.accept(ch, offset - 1) < 0 && braces.isClosed()) {
+                        state = State.OUTSIDE;
+                        updateLineState(ch);
+                        return new Block(block.toString(), blockStart, offset);
+                    }
+                    break;
+            }
+            updateLineState(ch);
+        }
+        // a range of a larger text ends before the next entry
+        if (state == State.BODY) addImbalance(offset, text != null && textEnd < text.length());
+        state = State.OUTSIDE;
+        return null;
+    }
+
+    /**
+     * @return amount of dropped blocks whose braces were not closed
+     */
+    public int getBrokenBlocks() {
+        return brokenBlocks;
+    }
+
+    /**
+     * @return where the braces of the first dropped block are unbalanced, null if no block was dropped
+     */
+    public BraceMatcher.Imbalance getFirstImbalance() {
+        return firstImbalance;
+    }
+
+    private void addImbalance(int stoppedAt, boolean interrupted) {
+        brokenBlocks++;
+        if (firstImbalance == null) firstImbalance = braces.getImbalance(blockStart, stoppedAt, interrupted);
+    }
+
+    private void startBlock() {
+        block.setLength(0);
+        block.append('@');
+        blockStart = offset - 1;
+        state = State.HEAD;
+    }
+
+    private void updateLineState(char ch) {
+        lineStart = ch == '\n';
+        onlyBlanksInLine = lineStart || (onlyBlanksInLine && (ch == ' ' || ch == '\t' || ch == '\r'));
+    }
+
+    /**
+     * Reads the next normalized char without looking for entries, the offset and the
+     * document builder are updated as usual. Must not be mixed with calls to next()
+     *
+     * @return next char or -1 at the end of input
+     */
+    int readChar() throws IOException {
+        return nextChar();
+    }
+
+    /**
+     * @return next char with normalized line endings or -1 at the end of input,
+     * a missing line break at the end of the input is added
+     */
+    private int nextChar() throws IOException {
+        int c;
+        if (pendingNewline) {
+            pendingNewline = false;
+            c = '\n';
+        } else {
+            c = readRaw();
+            if (c == -1) {
+                if (lastChar == -1 || lastChar == '\n') return -1;
+                pendingNewline = true;
+                c = '\r';
+            } else if (c == '\r') {
+                int n = readRaw();
+                if (n != '\n') peeked = n;
+                pendingNewline = true;
+            } else if (c == '\n') {
+                pendingNewline = true;
+                c = '\r';
+            }
+        }
+        lastChar = c;
+        offset++;
+        if (document != null) document.append((char) c);
+        return c;
+    }
+
+    private int readRaw() throws IOException {
+        if (peeked != -1) {
+            int c = peeked;
+            peeked = -1;
+            return c;
+        }
+        if (text != null) {
+            return textPos < textEnd ? text.charAt(textPos++) : -1;
+        }
+        if (bufferPos == bufferLen) {
+            bufferLen = reader.read(buffer, 0, buffer.length);
+            bufferPos = 0;
+            if (bufferLen <= 0) {
+                bufferLen = 0;
+                return -1;
+            }
+        }
+        return buffer[bufferPos++];
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (reader != null) reader.close();
+    }
+
+    /**
+     * A single raw entry block, with its position inside the normalized text
+     */
+    public static class Block {
+        private final String text;
+        private final int start;
+        private final int end;
+
+        public Block(String text, int start, int end) {
+            this.text = text;
+            this.start = start;
+            this.end = end;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        /**
+         * @return offset of the leading '@'
+         */
+        public int getStart() {
+            return start;
+        }
+
+        /**
+         * @return offset right after the closing '}'
+         */
+        public int getEnd() {
+            return end;
+        }
+    }
+}
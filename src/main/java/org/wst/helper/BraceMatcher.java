@@ -0,0 +1,139 @@
+package org.wst.helper;
+
+/**
+ * Finds the closing brace of an entry in one forward scan with an int depth counter
+ * <p>
+ * It is fed one char after the other, by the BibReader for files and by the BibLexer for any other text,
+ * so the end of an entry is found the same way everywhere. A backslash escapes the next char:
+ * \{ and \} are literal braces and are not counted, in \\{ the brace counts
+ * <p>
+ * If an entry is never closed, the matcher knows which brace is missing: the last '{' of a field value
+ * that is still open, or the first brace of the entry if all values are closed
+ */
+public class BraceMatcher {
+    private int depth;
+    private boolean escaped;
+    private int openAt = -1;
+    private int valueAt = -1;
+
+    /**
+     * Starts a new match at the first brace of an entry, the depth is then 1
+     *
+     * @param offset offset of the opening brace
+     */
+    public void start(int offset) {
+        depth = 1;
+        escaped = false;
+        openAt = offset;
+        valueAt = -1;
+    }
+
+    /**
+     * @param c      next char after the opening brace
+     * @param offset offset of the char
+     * @return 1 for an opening brace, -1 for a closing brace, 0 for any other or escaped char
+     */
+    public int accept(char c, int offset) {
+        if (escaped) {
+            escaped = false;
+            return 0;
+        }
+        if (c == '\\') {
+            escaped = true;
+        } else if (c == '{') {
+            if (++depth == 2) valueAt = offset;
+            return 1;
+        } else if (c == '}' && depth > 0) {
+            depth--;
+            return -1;
+        }
+        return 0;
+    }
+
+    /**
+     * @return amount of braces that are open, 0 after the entry is closed
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    public boolean isClosed() {
+        return depth == 0;
+    }
+
+    /**
+     * @param entryStart offset of the '@' of the entry
+     * @param stoppedAt  offset where the scan stopped, end of the text or the '@' of the next entry
+     * @param interrupted if a new entry started before the braces were closed
+     * @return where the braces of the open entry are unbalanced
+     */
+    public Imbalance getImbalance(int entryStart, int stoppedAt, boolean interrupted) {
+        return new Imbalance(entryStart, depth >= 2 && valueAt >= 0 ? valueAt : openAt, depth, stoppedAt, interrupted);
+    }
+
+    /**
+     * An entry whose braces were not closed, all positions are offsets inside the scanned text
+     */
+    public static class Imbalance {
+        private final int entryStart;
+        private final int unclosedAt;
+        private final int openBraces;
+        private final int stoppedAt;
+        private final boolean interrupted;
+
+        Imbalance(int entryStart, int unclosedAt, int openBraces, int stoppedAt, boolean interrupted) {
+            this.entryStart = entryStart;
+            this.unclosedAt = unclosedAt;
+            this.openBraces = openBraces;
+            this.stoppedAt = stoppedAt;
+            this.interrupted = interrupted;
+        }
+
+        public int getEntryStart() {
+            return entryStart;
+        }
+
+        /**
+         * @return offset of the '{' that is never closed
+         */
+        public int getUnclosedAt() {
+            return unclosedAt;
+        }
+
+        public int getOpenBraces() {
+            return openBraces;
+        }
+
+        public int getStoppedAt() {
+            return stoppedAt;
+        }
+
+        /**
+         * @return true if a new entry started at the start of a line, false if the text ended
+         */
+        public boolean isInterrupted() {
+            return interrupted;
+        }
+
+        /**
+         * @param text the scanned text, to find lines and columns. Can be null, offsets are shown then
+         * @return short message for the user, e.g. "Missing '}' for the '{' at line 3, column 12 ..."
+         */
+        public String describe(CharSequence text) {
+            return "Missing '}' for the '{' at " + position(text, unclosedAt) + " (" + openBraces + " open) in the entry at "
+                    + position(text, entryStart) + (interrupted ? ", the next entry starts at " + position(text, stoppedAt) : "");
+        }
+
+        private static String position(CharSequence text, int offset) {
+            if (text == null || offset > text.length()) return "offset " + offset;
+            int line = 1, lineStart = 0;
+            for (int i = 0; i < offset; i++) {
+                if (text.charAt(i) == '\n') {
+                    line++;
+                    lineStart = i + 1;
+                }
+            }
+            return "line " + line + ", column " + (offset - lineStart + 1);
+        }
+    }
+}
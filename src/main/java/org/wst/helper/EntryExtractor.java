@@ -0,0 +1,69 @@
+package org.wst.helper;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Walks a text once with a BibLexer and yields its entries one after the other
+ * <p>
+ * The text is never copied or changed, the lexer only scans as far as the next entry that is asked for.
+ * So a pasted export of several MB is read in linear time and the first entries can be used before the rest is scanned
+ * <p>
+ * Complete duplicates are skipped: the raw text of every returned entry is its fingerprint and kept in a hash set,
+ * an entry with the same text is not returned again
+ */
+public class EntryExtractor implements Iterator<BibLexer.Entry> {
+    private final BibLexer lexer;
+    private final Predicate<BibLexer.Entry> filter;
+    private final Set<String> fingerprints = new HashSet<>();
+    private BibLexer.Entry next;
+
+    /**
+     * @param text   text that can contain BibTeX entries
+     * @param filter only entries that pass are returned, e.g. entries of known types
+     */
+    public EntryExtractor(CharSequence text, Predicate<BibLexer.Entry> filter) {
+        this.lexer = new BibLexer(text);
+        this.filter = filter;
+    }
+
+    /**
+     * @return the entries of the text as lazy stream, in the order of the text
+     */
+    public static Stream<BibLexer.Entry> stream(CharSequence text, Predicate<BibLexer.Entry> filter) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(new EntryExtractor(text, filter),
+                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null) {
+            BibLexer.Entry entry = lexer.next();
+            if (entry == null) return false;
+            if (filter.test(entry) && fingerprints.add(entry.getText())) next = entry;
+        }
+        return true;
+    }
+
+    @Override
+    public BibLexer.Entry next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        BibLexer.Entry entry = next;
+        next = null;
+        return entry;
+    }
+
+    /**
+     * @return where the braces of the first broken entry so far are unbalanced, null if there is none
+     */
+    public BraceMatcher.Imbalance getFirstImbalance() {
+        return lexer.getFirstImbalance();
+    }
+}
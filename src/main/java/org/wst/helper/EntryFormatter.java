@@ -0,0 +1,180 @@
+package org.wst.helper;
+
+import org.wst.model.BibEntry;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+/**
+ * Writes a parsed entry in a clean layout, one field per line:
+ * <pre>
+ * &#64;type{key,
+ *     name = {value},
+ *     name = 2002
+ * }
+ * </pre>
+ * The parts are copied from the offsets of the BibEntry directly into the output, no Strings are created.
+ * The output can be any Appendable, e.g. a reused StringBuilder, a CharBuffer or a Writer.
+ * Only the array for the field order grows once, so formatting many entries creates no garbage per field
+ * <p>
+ * Indentation, closures, field order and line endings can be set. A formatter is not thread safe,
+ * use one per thread
+ */
+public class EntryFormatter {
+
+    public enum Closure {
+        CURLY,  // name = {value}
+        QUOTES, // name = "value"
+        KEEP    // as written
+    }
+
+    private String indent = "    ";
+    private String lineEnding = "\r\n";
+    private Closure closure = Closure.KEEP;
+    private String[] fieldOrder = new String[0];
+    private boolean[] written = new boolean[16];
+
+    /**
+     * @param indent written before every field, default 4 spaces
+     */
+    public void setIndent(String indent) {
+        this.indent = indent;
+    }
+
+    /**
+     * @param lineEnding written after the head and every field, default \r\n
+     */
+    public void setLineEnding(String lineEnding) {
+        this.lineEnding = lineEnding;
+    }
+
+    /**
+     * Only values that are enclosed as a whole are changed, e.g. "a" # b or 2002 are kept.
+     * A value in braces that contains a '"' outside of inner braces stays in braces
+     *
+     * @param closure closure of the values, default KEEP
+     */
+    public void setClosure(Closure closure) {
+        this.closure = closure;
+    }
+
+    /**
+     * @param names fields with these names come first in this order, case is ignored.
+     *              All other fields follow in the order of the text. No names keeps the order of the text
+     */
+    public void setFieldOrder(String... names) {
+        this.fieldOrder = names.clone();
+    }
+
+    /**
+     * Same as format(BibEntry, Appendable), for a StringBuilder that can not fail
+     */
+    public void format(BibEntry entry, StringBuilder out) {
+        try {
+            format(entry, (Appendable) out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Entries without keyword or fields are written as they are.
+     * A ',' after the last field is kept if the entry had one
+     *
+     * @param entry parsed entry
+     * @param out   output, the entry is appended without a line break after the closing brace
+     * @throws IOException if the output fails
+     */
+    public void format(BibEntry entry, Appendable out) throws IOException {
+        CharSequence text = entry.getSource();
+        int count = entry.getFieldCount();
+        if (entry.getKeyStart() < 0 || count == 0) {
+            out.append(text, entry.getStart(), entry.getEnd());
+            return;
+        }
+        out.append('@').append(text, entry.getTypeStart(), entry.getTypeEnd()).append('{')
+                .append(text, entry.getKeyStart(), entry.getKeyEnd()).append(',');
+
+        if (written.length < count) written = new boolean[Math.max(count, 2 * written.length)];
+        Arrays.fill(written, 0, count, false);
+        int left = count;
+        for (String name : fieldOrder) {
+            for (int i = 0; i < count; i++) {
+                if (!written[i] && entry.isField(i, name)) {
+                    writeField(entry, i, out, --left > 0);
+                    written[i] = true;
+                }
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            if (!written[i]) writeField(entry, i, out, --left > 0);
+        }
+        if (hasTrailingComma(entry, count)) out.append(',');
+        out.append(lineEnding).append('}');
+    }
+
+    private void writeField(BibEntry entry, int i, Appendable out, boolean more) throws IOException {
+        CharSequence text = entry.getSource();
+        out.append(lineEnding).append(indent)
+                .append(text, entry.getFieldNameStart(i), entry.getFieldNameEnd(i)).append(" = ");
+        writeValue(text, entry.getFieldValueStart(i), entry.getFieldValueEnd(i), out);
+        if (more) out.append(',');
+    }
+
+    private void writeValue(CharSequence text, int start, int end, Appendable out) throws IOException {
+        if (closure != Closure.KEEP && end - start >= 2) {
+            char first = text.charAt(start);
+            boolean curly = first == '{' && closingOf(text, start, end) == end - 1;
+            boolean quoted = first == '"' && closingOf(text, start, end) == end - 1;
+            if (closure == Closure.CURLY && quoted) {
+                out.append('{').append(text, start + 1, end - 1).append('}');
+                return;
+            }
+            if (closure == Closure.QUOTES && curly && !hasTopLevelQuote(text, start + 1, end - 1)) {
+                out.append('"').append(text, start + 1, end - 1).append('"');
+                return;
+            }
+        }
+        out.append(text, start, end);
+    }
+
+    /**
+     * @return index of the '}' or '"' that closes the value at start, -1 if it is not closed before the end
+     */
+    private static int closingOf(CharSequence text, int start, int end) {
+        char open = text.charAt(start);
+        int braces = open == '{' ? 1 : 0;
+        for (int i = start + 1; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == '\\') i++;
+            else if (c == '{') braces++;
+            else if (c == '}' && --braces == 0 && open == '{') return i;
+            else if (c == '"' && braces == 0 && open == '"') return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if a '"' is outside of inner braces, it would end the value in quotes
+     */
+    private static boolean hasTopLevelQuote(CharSequence text, int start, int end) {
+        int braces = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == '\\') i++;
+            else if (c == '{') braces++;
+            else if (c == '}') braces--;
+            else if (c == '"' && braces == 0) return true;
+        }
+        return false;
+    }
+
+    private static boolean hasTrailingComma(BibEntry entry, int count) {
+        CharSequence text = entry.getSource();
+        for (int i = entry.getFieldValueEnd(count - 1); i < entry.getEnd() - 1; i++) {
+            if (text.charAt(i) == ',') return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,182 @@
+package org.wst.helper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of entry mutations, stored next to the .bib file as "name.bib.journal"
+ * In journaled mode an edit only appends its mutations here instead of rewriting the .bib file,
+ * the journal is folded into the .bib file later by a compaction
+ * <p>
+ * Every record is a header line "U|D keywordLength entryLength crc32" followed by the keyword,
+ * the entry and a line break. Lengths are in chars, the journal is always UTF-8
+ * A record that is cut off or has a wrong checksum (crash during append) ends the replay,
+ * all records before it are still used. Such a broken tail is cut off before the next append,
+ * so the records after it are not lost
+ */
+public class EntryJournal {
+    public final static String suffix = ".journal";
+
+    private final File bibFile;
+    private final File journalFile;
+    private long validBytes;
+    private boolean tailChecked;
+
+    public EntryJournal(File bibFile) {
+        this.bibFile = bibFile;
+        this.journalFile = new File(bibFile.getAbsolutePath() + suffix);
+    }
+
+    public File getBibFile() {
+        return bibFile;
+    }
+
+    public boolean exists() {
+        return journalFile.exists();
+    }
+
+    /**
+     * @return size of the journal in bytes, 0 if there is none
+     */
+    public long size() {
+        return journalFile.length();
+    }
+
+    /**
+     * Appends all mutations with a single write
+     *
+     * @param mutations mutations in the order they were done
+     * @param saver     saver to append with, its SyncPolicy decides when the journal is forced to disk
+     * @throws IOException if the journal could not be written
+     */
+    public void append(List<Mutation> mutations, FileSaver saver) throws IOException {
+        if (!tailChecked) {
+            read(); // finds the end of the last complete record
+            if (exists() && validBytes < size()) truncate();
+        }
+        StringBuilder builder = new StringBuilder();
+        for (Mutation mutation : mutations) {
+            String entry = mutation.entry == null ? "" : mutation.entry;
+            CRC32 crc = new CRC32();
+            crc.update((mutation.keyword + entry).getBytes(StandardCharsets.UTF_8));
+            builder.append(mutation.isDelete() ? 'D' : 'U').append(' ')
+                    .append(mutation.keyword.length()).append(' ')
+                    .append(entry.length()).append(' ')
+                    .append(Long.toHexString(crc.getValue())).append('\n')
+                    .append(mutation.keyword).append(entry).append('\n');
+        }
+        tailChecked = false; // a failed append can leave a broken record
+        saver.append(journalFile, StandardCharsets.UTF_8, builder.toString());
+        tailChecked = true;
+    }
+
+    /**
+     * Cuts off a broken record at the end, e.g. from a crash during an append
+     */
+    private void truncate() throws IOException {
+        System.err.println("Journal of " + bibFile.getName() + " ends with a broken record, it is cut off");
+        try (FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(validBytes);
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Bytes that are not valid UTF-8 (a char cut off by a crash) do not fail the read,
+     * they can only be part of the broken record at the end
+     *
+     * @return all complete mutations in the order they were written, empty if there is no journal
+     * @throws IOException if the journal could not be read
+     */
+    public List<Mutation> read() throws IOException {
+        List<Mutation> mutations = new ArrayList<>();
+        validBytes = 0;
+        tailChecked = true;
+        if (!exists()) return mutations;
+        // the String constructor replaces malformed input, Files.readString would throw
+        String text = new String(Files.readAllBytes(journalFile.toPath()), StandardCharsets.UTF_8);
+        int pos = 0;
+        while (pos < text.length()) {
+            int lineEnd = text.indexOf('\n', pos);
+            if (lineEnd == -1) break;
+            String[] header = text.substring(pos, lineEnd).split(" ");
+            try {
+                if (header.length != 4 || !(header[0].equals("U") || header[0].equals("D"))) break;
+                int keywordLength = Integer.parseInt(header[1]);
+                int entryLength = Integer.parseInt(header[2]);
+                int start = lineEnd + 1;
+                int end = start + keywordLength + entryLength;
+                if (keywordLength < 0 || entryLength < 0 || end >= text.length() || text.charAt(end) != '\n') break;
+
+                String keyword = text.substring(start, start + keywordLength);
+                String entry = text.substring(start + keywordLength, end);
+                byte[] bytes = (keyword + entry).getBytes(StandardCharsets.UTF_8);
+                CRC32 crc = new CRC32();
+                crc.update(bytes);
+                if (crc.getValue() != Long.parseLong(header[3], 16)) break;
+
+                mutations.add(header[0].equals("D") ? Mutation.delete(keyword) : Mutation.upsert(keyword, entry));
+                validBytes += (lineEnd - pos) + 1 + bytes.length + 1; // the header is ASCII
+                pos = end + 1;
+            } catch (NumberFormatException e) {
+                break;
+            }
+        }
+        if (pos < text.length()) {
+            System.err.println("Journal of " + bibFile.getName() + " ends with a broken record, it is ignored");
+        }
+        return mutations;
+    }
+
+    /**
+     * Removes the journal, after its mutations are part of the .bib file
+     *
+     * @throws IOException if the journal could not be deleted
+     */
+    public void discard() throws IOException {
+        Files.deleteIfExists(journalFile.toPath());
+    }
+
+    /**
+     * A single upsert or delete of an entry by its keyword
+     */
+    public static class Mutation {
+        private final String keyword;
+        private final String entry;
+
+        private Mutation(String keyword, String entry) {
+            this.keyword = keyword;
+            this.entry = entry;
+        }
+
+        public static Mutation upsert(String keyword, String entry) {
+            return new Mutation(keyword, entry);
+        }
+
+        public static Mutation delete(String keyword) {
+            return new Mutation(keyword, null);
+        }
+
+        public String getKeyword() {
+            return keyword;
+        }
+
+        /**
+         * @return the new entry, null for a delete
+         */
+        public String getEntry() {
+            return entry;
+        }
+
+        public boolean isDelete() {
+            return entry == null;
+        }
+    }
+}
@@ -12,19 +12,33 @@ import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import org.wst.App;
 import org.wst.PrimaryController;
+import org.wst.model.BibDocument;
+import org.wst.model.BibEntry;
 import org.wst.model.TableEntry;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 
 /**
  * Singleton Class!
  */
 public class FileManager {
     private FileManager() {
+        saver.setOnWritten(this::onWritten);
     }
 
     private final static FileManager fileManager = new FileManager();
+    private final static int reformatAttempts = 3; // reformats without the lock, before the last one holds it
 
     public static FileManager getInstance() {
         return fileManager;
@@ -32,13 +46,83 @@ public class FileManager {
 
     private File rootDirectory;
     private Task<List<File>> directorySearchTask;
-    private List<File> filesInsideRoot;
+    private final Map<String, File> filesInsideRoot = new ConcurrentHashMap<>(); // name in the ListView -> file
+    private final Map<File, String> listNames = new HashMap<>(); // absolute file -> name, guarded by itself
+    private final ScanRules scanRules = ScanRules.defaults();
+    private ScanCache scanCache = ScanCache.getDefault();
     private File selectedFile;
-    private Map<String, String> bibMap;
-    private String fileAsString;
+    private BibDocument document;
+    private File documentFile;
     private UndoRedoManager undoRedo;
     private Button undoButton, redoButton;
     private final Object lock = new Object();
+    private Charset charset = StandardCharsets.UTF_8;
+    private LoadMode loadMode = LoadMode.AUTO;
+    private long mappedLoadThreshold = 32 * 1024 * 1024;
+    private long parallelLoadThreshold = 1024 * 1024;
+    private final FileSaver saver = new FileSaver();
+    private boolean journaled;
+    private long journalCompactThreshold = 1024 * 1024;
+    private long journalIdleMillis = 10_000;
+    private EntryJournal journal;
+    private final List<EntryJournal.Mutation> unsavedMutations = new ArrayList<>(); // not yet written, guarded by lock
+    private TableRowIndex rowIndex;
+    private TableRowIndex documentRows;
+    private volatile String documentState;
+    private volatile ParallelBibParser.Stats lastParallelLoad;
+    private final AtomicLong loadGeneration = new AtomicLong();
+    private Task<?> loadTask;
+    private ScheduledFuture<?> pendingCompaction;
+    private final BackgroundExecutor executor = BackgroundExecutor.getInstance();
+    private final ScheduledExecutorService writer = executor.getWriter();
+    private final WriteScheduler writes = new WriteScheduler(lock, writer, this::flushWrites);
+    private final FileWatcher watcher = new FileWatcher(writer);
+    private final ParsedFileCache parsedFiles = new ParsedFileCache(Runtime.getRuntime().maxMemory() / 4);
+
+    /**
+     * STREAM: read the file through a channel and keep the whole content as String
+     * MAPPED: memory-map the file and only parse it, the content is read again when an edit needs it
+     * PARALLEL: like STREAM, but the entries are parsed on all cores
+     * AUTO: MAPPED or PARALLEL for files larger than the thresholds, else STREAM
+     */
+    public enum LoadMode {
+        AUTO,
+        STREAM,
+        MAPPED,
+        PARALLEL
+    }
+
+    /**
+     * Rules of every directory scan, the .bibignore file of the selected root is added to them per scan
+     *
+     * @return rules to change the patterns and limits of the scans
+     */
+    public ScanRules getScanRules() {
+        return scanRules;
+    }
+
+    /**
+     * @param scanCache cache for the scans of root directories, null to always scan the whole tree
+     */
+    public void setScanCache(ScanCache scanCache) {
+        this.scanCache = scanCache;
+    }
+
+    /**
+     * Files that were loaded before are kept parsed in this cache, up to a quarter of the max heap
+     *
+     * @return cache for its metrics
+     */
+    public ParsedFileCache getParsedFileCache() {
+        return parsedFiles;
+    }
+
+    /**
+     * @return timings of the last file that was read with the ParallelBibParser, null if there was none
+     */
+    public ParallelBibParser.Stats getLastParallelLoad() {
+        return lastParallelLoad;
+    }
 
     /**
      * Needed by UndoRedoManager, in order to make fileWrites on the same lock
@@ -49,6 +133,97 @@ public class FileManager {
         return lock;
     }
 
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * @param charset used to read and write the .bib files, default is UTF-8
+     */
+    public void setCharset(Charset charset) {
+        this.charset = charset;
+    }
+
+    public void setLoadMode(LoadMode loadMode) {
+        this.loadMode = loadMode;
+    }
+
+    /**
+     * @param bytes files larger than this are memory-mapped in LoadMode.AUTO
+     */
+    public void setMappedLoadThreshold(long bytes) {
+        this.mappedLoadThreshold = bytes;
+    }
+
+    /**
+     * @param bytes files larger than this are parsed in parallel in LoadMode.AUTO
+     */
+    public void setParallelLoadThreshold(long bytes) {
+        this.parallelLoadThreshold = bytes;
+    }
+
+    /**
+     * Every write of a file goes through this saver, see FileSaver for the fsync policy of appends
+     *
+     * @return saver for the .bib files, also for its throughput
+     */
+    public FileSaver getFileSaver() {
+        return saver;
+    }
+
+    /**
+     * In journaled mode edits only append their mutations to a journal next to the file (see EntryJournal),
+     * the journal is folded into the file when idle, when it gets too large, before another file is
+     * loaded and on close. Turning the mode off compacts the journal right away
+     *
+     * @param journaled true to enable the journaled mode
+     */
+    public void setJournaled(boolean journaled) {
+        this.journaled = journaled;
+        if (!journaled) scheduleCompaction(0);
+    }
+
+    /**
+     * @param bytes journals larger than this are compacted right away
+     */
+    public void setJournalCompactThreshold(long bytes) {
+        this.journalCompactThreshold = bytes;
+    }
+
+    /**
+     * @param millis time without edits after which the journal is compacted
+     */
+    public void setJournalIdleDelay(long millis) {
+        this.journalIdleMillis = millis;
+    }
+
+    /**
+     * @param millis window in which the writes of edits are coalesced into one, see WriteScheduler
+     */
+    public void setWriteDelay(long millis) {
+        writes.setDelay(millis);
+    }
+
+    /**
+     * Writes all pending edits to the file right away, must be called before
+     * the file is written by anyone else
+     */
+    public void flushPendingWrites() {
+        writes.flushNow();
+    }
+
+    /**
+     * Writes pending edits and compacts a pending journal, should be called before the app exits
+     * and before the BackgroundExecutor is shut down
+     */
+    public void close() {
+        watcher.close();
+        synchronized (lock) {
+            writes.flushNow();
+            compactJournal();
+        }
+    }
+
     public void setUndoRedoButtons(Button undo, Button redo) {
         this.undoButton = undo;
         this.redoButton = redo;
@@ -60,7 +235,8 @@ public class FileManager {
      * Will prompt the user to choose a directory, with possible .bib files
      * If a directory has already been chosen, the same directory will be opened
      * in the dialog. The directory and every subdirectory will be searched for
-     * .bib files, that will be added to the ListView.
+     * .bib files, that will be added to the ListView in batches while the search is running
+     * and sorted when it is done.
      * <p>
      * The search task will happen on a separate Thread to the UI Thread!
      *
@@ -99,27 +275,25 @@ public class FileManager {
         rootDirectory = chooser.showDialog(b.getScene().getWindow());
 
         if (rootDirectory != null) {
-            directorySearchTask = getFileSearchTask(rootDirectory);
+            ObservableList<String> fileNames = FXCollections.observableArrayList();
+            view.setItems(fileNames);
+            synchronized (listNames) {
+                listNames.clear();
+                filesInsideRoot.clear();
+            }
+            directorySearchTask = getFileSearchTask(rootDirectory, fileNames);
+            File root = rootDirectory;
             directorySearchTask.setOnSucceeded(list -> {
-                List<String> fileNames = new ArrayList<>();
-
-                filesInsideRoot = directorySearchTask.getValue();
-                for (File f : filesInsideRoot
-                ) {
-                    fileNames.add(f.getParentFile().getName() + File.separator + f.getName());
-                }
-
-                Collections.sort(fileNames);
-                System.out.println(fileNames);
+                FXCollections.sort(fileNames);
                 if (fileNames.size() == 0) fileNames.add("No .bib files found!");
-                view.setItems(FXCollections.observableArrayList(fileNames));
+                watchRoot(root, fileNames);
 
                 b.setDisable(false);
                 b.setId(id);
 
             });
-            Thread th = new Thread(directorySearchTask);
-            th.start();
+            directorySearchTask.setOnCancelled(list -> FXCollections.sort(fileNames));
+            executor.io(directorySearchTask);
         } else {
             //b.setDisable(false);
             b.setId(id);
@@ -127,41 +301,126 @@ public class FileManager {
     }
 
     /**
-     * Task for the search thread
+     * Task for the search thread, the directory tree is searched by the BibFileScanner on the scan pool,
+     * directories matching the ScanRules are skipped
+     * If the root was scanned before, the files of the ScanCache are shown right away and the rescan
+     * only lists the directories that changed since, files that are gone are removed at the end
      *
-     * @param dir root directory
+     * @param dir       root directory
+     * @param fileNames list of the ListView, gets the name of every .bib file as soon as it is found
      * @return List of all .bib files inside root
      */
-    private Task<List<File>> getFileSearchTask(File dir) {
+    private Task<List<File>> getFileSearchTask(File dir, ObservableList<String> fileNames) {
+        BatchedListUpdater<String> updater = new BatchedListUpdater<>(fileNames);
+        ScanCache cache = scanCache;
         return new Task<>() {
             @Override
             protected List<File> call() {
-                return getAllSubFiles(dir, new ArrayList<>());
+                ScanRules rules = scanRules.withIgnoreFile(dir.toPath());
+                String signature = rules.getSignature();
+                ScanCache.Snapshot cached = cache == null ? null : cache.load(dir.toPath(), signature);
+                Set<File> shown = ConcurrentHashMap.newKeySet();
+                if (cached != null) {
+                    for (File file : cached.getFiles()) {
+                        String name = addListFile(file);
+                        if (name != null) updater.add(name);
+                        shown.add(file.getAbsoluteFile());
+                    }
+                    updater.flush();
+                }
+
+                Set<File> found = ConcurrentHashMap.newKeySet();
+                ScanCache.Snapshot snapshot = new BibFileScanner(executor.getScanPool()).rescan(dir, rules, cached, file -> {
+                    String name = addListFile(file);
+                    if (name != null) updater.add(name);
+                    found.add(file.getAbsoluteFile());
+                    shown.add(file.getAbsoluteFile());
+                }, this::isCancelled);
+                updater.flush();
+
+                if (snapshot.isComplete()) {
+                    shown.removeAll(found);
+                    List<String> gone = new ArrayList<>();
+                    for (File file : shown) {
+                        String name = removeListFile(file);
+                        if (name != null) gone.add(name);
+                    }
+                    if (!gone.isEmpty()) Platform.runLater(() -> fileNames.removeAll(gone));
+                    if (cache != null) cache.store(snapshot, signature);
+                }
+                return new ArrayList<>(filesInsideRoot.values());
             }
         };
     }
 
     /**
-     * Recursive function that will call itself until every .bib file is found inside the current directory
+     * Keeps the list up to date while the app runs: .bib files that are created or deleted in the root
+     * or in a directory with .bib files are added to or removed from the list
      *
-     * @param dir  current parent directory
-     * @param list current list of .bib files
-     * @return subList of .bib Files
-     */
-    private List<File> getAllSubFiles(File dir, List<File> list) {
-        if (directorySearchTask.isCancelled()) return list;
-        File[] sub = dir.listFiles();
-        if (sub != null) {
-            for (File f : sub
-            ) {
-                if (f.isFile() && f.getName().endsWith(".bib") && !list.contains(f)) {
-                    list.add(f);
-                } else if (f.isDirectory()) {
-                    getAllSubFiles(f, list);
+     * @param root      scanned root directory
+     * @param fileNames list of the ListView
+     */
+    private void watchRoot(File root, ObservableList<String> fileNames) {
+        Set<Path> directories = new HashSet<>();
+        directories.add(root.toPath());
+        for (File file : filesInsideRoot.values()) {
+            directories.add(file.getParentFile().toPath());
+        }
+        watcher.watchDirectories(directories, path -> Platform.runLater(() -> {
+            File file = path.toFile();
+            if (file.isFile()) {
+                String name = addListFile(file);
+                if (name != null) {
+                    fileNames.remove("No .bib files found!");
+                    fileNames.add(name);
+                    FXCollections.sort(fileNames);
                 }
+            } else {
+                String name = removeListFile(file);
+                if (name != null) fileNames.remove(name);
             }
+        }));
+    }
+
+    /**
+     * Files are told apart by their absolute path, the name in the ListView is "parent/name.bib".
+     * If another file already has this name, more parent directories are added until it is unique
+     *
+     * @return name of the file in the ListView, null if the file is listed already
+     */
+    private String addListFile(File file) {
+        File key = file.getAbsoluteFile();
+        synchronized (listNames) {
+            if (listNames.containsKey(key)) return null;
+            String name = getListName(key, 2);
+            for (int segments = 3; filesInsideRoot.containsKey(name); segments++) {
+                name = getListName(key, segments);
+            }
+            listNames.put(key, name);
+            filesInsideRoot.put(name, key);
+            return name;
         }
-        return list;
+    }
+
+    /**
+     * @return name the file had in the ListView, null if it was not listed
+     */
+    private String removeListFile(File file) {
+        synchronized (listNames) {
+            String name = listNames.remove(file.getAbsoluteFile());
+            if (name != null) filesInsideRoot.remove(name);
+            return name;
+        }
+    }
+
+    /**
+     * @param segments amount of path elements from the end, e.g. 2 for "parent/name.bib"
+     * @return the last elements of the path, the whole absolute path if it has not that many
+     */
+    private static String getListName(File absolute, int segments) {
+        Path path = absolute.toPath();
+        int count = path.getNameCount();
+        return segments < count ? path.subpath(count - segments, count).toString() : absolute.getPath();
     }
 
     /**
@@ -202,13 +461,8 @@ public class FileManager {
      * @param filename name of the file to select
      */
     public void selectFileFromList(String filename) {
-        if (filesInsideRoot == null) return;
-        for (File f : filesInsideRoot
-        ) {
-            if ((f.getParentFile().getName() + File.separator + f.getName()).equals(filename)) {
-                selectedFile = f;
-            }
-        }
+        File file = filesInsideRoot.get(filename);
+        if (file != null) selectedFile = file;
     }
 
     /**
@@ -228,8 +482,8 @@ public class FileManager {
 
     /**
      * Will write the given bib-entry into the selected file, validity should be checked before calling this function
-     * If an entry with a given keyword is already in the file it will replace the one in the file and the map
-     * Synchronized on lock object, only one thread may write to a file change the file-String at a time
+     * If an entry with a given keyword is already in the file it will replace the one in the file and the document
+     * Synchronized on lock object, only one thread may write to a file change the document at a time
      * -> prevent any possible exceptions
      * Will remove any empty lines at the start and end of the file
      *
@@ -240,27 +494,24 @@ public class FileManager {
             @Override
             protected Void call() throws Exception {
                 synchronized (lock) {
+                    if (!loadFileAsString()) return null;
+                    File file = documentFile; // selectedFile can already be a file that is still loading
                     try {
-                        BufferedWriter writer = new BufferedWriter(new FileWriter(selectedFile.getAbsoluteFile(), true));
-
                         String keyword = FormatChecker.getBibEntryKeyword(str);
                         if (keyword == null) {
                             System.err.println("Cant insert invalid bib entry!");
-                        } else if (bibMap.containsKey(keyword)) { // entry already in file, overwrite whole file, including new entry
-                            String toReplace = bibMap.get(keyword);
-                            fileAsString = fileAsString.replace(toReplace, str).trim() + "\r\n";
-                            bibMap.put(keyword, str);
-                            writer = new BufferedWriter(new FileWriter(selectedFile.getAbsoluteFile(), false));
-                            writer.write(fileAsString);
-
+                            return null;
+                        }
+                        BibDocument.Edit edit = document.upsertEdit(keyword, str);
+                        document.apply(Collections.singletonList(edit));
+                        if (journalMutations(Collections.singletonList(EntryJournal.Mutation.upsert(keyword, str)))) {
+                            return null;
+                        } else if (!edit.isInsert()) { // entry already in file, overwrite whole file, including new entry
+                            document.trim();
+                            writes.save(file);
                         } else { // entry not in file append it
-                            bibMap.put(keyword, str);
-                            fileAsString += "\r\n" + str;
-                            writer.write("\r\n");
-                            writer.write(str);
+                            writes.append(file, edit.getReplacement());
                         }
-                        writer.flush();
-                        writer.close();
                     } catch (IOException e) {
                         System.err.println("Error writing to file");
                         e.printStackTrace();
@@ -269,13 +520,13 @@ public class FileManager {
                 }
             }
         };
-        Thread th = new Thread(task);
-        th.start();
+        executor.io(task);
     }
 
     /**
      * This will rewrite the file without the selected Entries, deleting them this way
-     * If an entry is not part of the bibMap nothing will happen with that entry
+     * All entries are removed from the document in a single pass
+     * If an entry is not part of the document nothing will happen with that entry
      * Will remove any empty lines at the start and end (except 1) of the file
      * Will remove any double empty lines from the file
      * Synchronized on lock object, only one thread may write to a file change the file-String at a time
@@ -287,29 +538,27 @@ public class FileManager {
             @Override
             protected Void call() throws Exception {
                 synchronized (lock) {
+                    if (!loadFileAsString()) return null;
+                    File file = documentFile; // selectedFile can already be a file that is still loading
                     try {
                         for (String key : keywords
                         ) {
-                            if (bibMap.containsKey(key)) {
-                                String toReplace = bibMap.get(key);
-                                if (fileAsString.contains("\r\n" + toReplace)) {
-                                    fileAsString = fileAsString.replace("\r\n" + toReplace, "");
-                                } else {
-                                    fileAsString = fileAsString.replace(toReplace, "");
-                                }
-                                bibMap.remove(key);
-                            } else {
+                            if (!document.containsKey(key)) {
                                 System.err.println("Cant delete entry: '" + key + "' its not in the file");
                             }
                         }
-                        BufferedWriter writer = new BufferedWriter(new FileWriter(selectedFile.getAbsoluteFile(), false));
-                        fileAsString = fileAsString.trim() + "\r\n";
-                        writer.write(fileAsString);
-                        writer.flush();
-                        writer.close();
-                        undoRedo.saveOperation(fileAsString, selectedFile, UndoRedoManager.Action.DELETE);
+                        document.deleteEntries(keywords);
+                        List<EntryJournal.Mutation> mutations = new ArrayList<>();
+                        for (String key : keywords) {
+                            mutations.add(EntryJournal.Mutation.delete(key));
+                        }
+                        if (!journalMutations(mutations)) {
+                            document.trim();
+                            writes.save(file);
+                        }
+                        undoRedo.saveOperation(document.getText(), file, UndoRedoManager.Action.DELETE);
                         Platform.runLater(() -> {
-                            int size = bibMap.size();
+                            int size = document.size();
                             tableLabel.setText(size + (size == 1 ? " entry inside: " : " entries inside: ") + fileManager.getSelectedFileName());
                         });
                     } catch (IOException e) {
@@ -322,16 +571,16 @@ public class FileManager {
                 }
             }
         };
-        Thread th = new Thread(task);
-        th.start();
+        executor.io(task);
     }
 
     /**
      * Will check if the current entries inside the TextArea are valid and insert them all
      * into the file, if all entries are new they will be appended to the file, else the file is rewritten
-     * The map of bib entries will also be updated accordingly
-     * Will also update the TableView with new/updated entries
-     * Any change of fileAsString and write operation is synchronized on variable "lock"
+     * All changes are applied to the document in a single splice
+     * Will also update the TableView with new/updated entries, the rows are found with the TableRowIndex
+     * and changed on the FX thread in a single batch
+     * Any change of the document and write operation is synchronized on variable "lock"
      * Throw an alert if there are no entries to insert, and one telling how many entries where inserted
      *
      * @param text    text block from textArea
@@ -341,78 +590,65 @@ public class FileManager {
     public void insertIntoFile(String text, ObservableList<TableEntry> entries, Label tableLabel, ActionEvent event) {
         Button b = (Button) event.getSource();
         b.setDisable(true);
+        TableRowIndex rows = getRowIndex(entries);
         Task<Void> task = new Task<>() {
             @Override
             protected Void call() {
 
                 ArrayList<String> entryArray = FormatChecker.getBibEntries(text);
                 if (entryArray.isEmpty()) {
-                    Platform.runLater(() -> PrimaryController.throwAlert("Entry/ies not inserted!", "No valid entry found!"));
+                    BraceMatcher.Imbalance imbalance = FormatChecker.findImbalance(text);
+                    String message = imbalance == null ? "No valid entry found!" :
+                            "No valid entry found!\n" + imbalance.describe(text);
+                    Platform.runLater(() -> PrimaryController.throwAlert("Entry/ies not inserted!", message));
                 } else {
-                    int entriesChanged = 0;
-                    int entriesInserted = 0;
-                    String fileAsStringTmp = fileAsString;
-                    StringBuilder rewriteBuilder = new StringBuilder(fileAsStringTmp);
-                    StringBuilder appendBuilder = new StringBuilder();
-
-                    for (String entry : entryArray) {
-                        String keyword = FormatChecker.getBibEntryKeyword(entry);
-                        if (keyword == null) {
-                            System.err.println("Insert into file, invalid entry");
-                        } else {
-                            if (bibMap.containsKey(keyword)) { // entry already in file, replace old one
-                                String toReplace = bibMap.get(keyword);
-                                if (!toReplace.equals(entry)) {
-                                    fileAsStringTmp = rewriteBuilder.toString();
-                                    fileAsStringTmp = fileAsStringTmp.replace(toReplace, entry).trim() + "\r\n";
-                                    rewriteBuilder = new StringBuilder(fileAsStringTmp);
-                                    bibMap.put(keyword, entry);
-                                    entriesChanged++;
-                                }
-
-                            } else { // entry not in file yet append it
-                                bibMap.put(keyword, entry);
-                                rewriteBuilder.append("\r\n").append(entry);
-                                appendBuilder.append("\r\n").append(entry);
-                                entriesInserted++;
-                            }
+                    BibDocument.UpsertSummary summary;
+                    List<TableEntry> changedRows = new ArrayList<>();
 
-                            boolean isAlreadyInFile = false; // update Table entries with this entry
-                            for (int i = 0; i < entries.size(); i++) {
-                                if (entries.get(i).getKeyword().equals(keyword)) {
-                                    entries.set(i, FormatChecker.getBibTableEntry(entry));
-                                    isAlreadyInFile = true;
-                                    break;
-                                }
-                            }
-                            if (!isAlreadyInFile) {
-                                entries.add(FormatChecker.getBibTableEntry(entry));
+                    synchronized (lock) {
+                        if (!loadFileAsString()) {
+                            b.setDisable(false);
+                            return null;
+                        }
+                        File file = documentFile;
+                        // the last entry with a keyword wins, like it did in the file
+                        Map<String, String> newEntries = new LinkedHashMap<>();
+                        for (String entry : entryArray) {
+                            String keyword = FormatChecker.getBibEntryKeyword(entry);
+                            if (keyword == null) {
+                                System.err.println("Insert into file, invalid entry");
+                            } else {
+                                newEntries.put(keyword, entry);
                             }
                         }
-                    }
+                        // changed entries are replaced in place, new ones appended, all in one pass
+                        summary = document.upsertAll(newEntries);
 
-                    synchronized (lock) {
+                        List<EntryJournal.Mutation> mutations = new ArrayList<>();
+                        for (Map.Entry<String, String> change : summary.getChanges().entrySet()) {
+                            changedRows.add(FormatChecker.getBibTableEntry(change.getValue()));
+                            mutations.add(EntryJournal.Mutation.upsert(change.getKey(), change.getValue()));
+                        }
                         try {
-                            BufferedWriter writer;
-                            if (entriesChanged > 0) {
-                                writer = new BufferedWriter(new FileWriter(selectedFile.getAbsoluteFile(), false));
-                                writer.write(rewriteBuilder.toString());
+                            if (summary.isNothingChanged() || journalMutations(mutations)) {
+                                // nothing to write to the file
+                            } else if (summary.getUpdated() > 0) {
+                                document.trim();
+                                writes.save(file);
                             } else {
-                                writer = new BufferedWriter(new FileWriter(selectedFile.getAbsoluteFile(), true));
-                                writer.write(appendBuilder.toString());
+                                writes.append(file, summary.getAppendedText());
                             }
-                            writer.flush();
-                            writer.close();
-                            fileAsString = rewriteBuilder.toString();
                         } catch (IOException e) {
                             System.err.println("Error during insert file write");
                             e.printStackTrace();
                         }
+                        undoRedo.saveOperation(document.getText(), file, UndoRedoManager.Action.WRITE);
                     }
 
-                    undoRedo.saveOperation(fileAsString, selectedFile, UndoRedoManager.Action.WRITE);
                     //inputArea.setText("Bib entry successfully inserted into " + fileManager.getSelectedFileName());
 
+                    int entriesInserted = summary.getInserted();
+                    int entriesChanged = summary.getUpdated();
                     String actionHead = (entriesChanged > 0 && entriesInserted > 0) ? "inserted and changed!" : entriesChanged > 0 ? "changed!" : "inserted!";
                     String head = entryArray.size() == 1 ? "Bib-Entry " : "Entries ";
 
@@ -437,11 +673,16 @@ public class FileManager {
                             build.append(entriesChanged).append(" Bib-Entries successfully updated!");
                         }
                     }
-                    boolean nothingChanged = (entriesChanged == 0 && entriesInserted == 0);
+                    if (summary.getUnchanged() > 0 && !summary.isNothingChanged()) {
+                        build.append("\n").append(summary.getUnchanged())
+                                .append(summary.getUnchanged() == 1 ? " was" : " where").append(" already in the file!");
+                    }
+                    boolean nothingChanged = summary.isNothingChanged();
                     String body = build.toString();
 
                     Platform.runLater(() -> {
-                        int size = bibMap.size();
+                        rows.upsertAll(changedRows);
+                        int size = document.size();
                         tableLabel.setText(size + (size == 1 ? " entry inside: " : " entries inside: ") + fileManager.getSelectedFileName());
                         if (nothingChanged) {
                             PrimaryController.throwAlert("Nothing changed!", ((entryArray.size() == 1 ? "This entry is " : "These entries are ") + "already in the file!"));
@@ -457,8 +698,7 @@ public class FileManager {
                 return null;
             }
         };
-        Thread th = new Thread(task);
-        th.start();
+        executor.io(task);
 
     }
 
@@ -496,11 +736,10 @@ public class FileManager {
 
             try {
                 if (!selectedFile.createNewFile()) {
-                    FileWriter fw = new FileWriter(selectedFile, false);
-                    fw.write("");
-                    fw.flush();
-                    fw.close();
-                    undoRedo.saveOperation(fileAsString, selectedFile, UndoRedoManager.Action.FILE_LOAD);
+                    writes.flushNow();
+                    saver.save(selectedFile, charset, writer -> writer.write(""));
+                    discardJournal(selectedFile);
+                    undoRedo.saveOperation(document != null ? document.getText() : null, selectedFile, UndoRedoManager.Action.FILE_LOAD);
                     undoButton.setDisable(!undoRedo.isUndoPossible());
                     redoButton.setDisable(!undoRedo.isRedoPossible());
                 }
@@ -513,71 +752,106 @@ public class FileManager {
     }
 
     /**
-     * Will read the selected file and check block wise if there is a bib entry. If there
-     * is an entry it will be added to the bibMap for later use.
+     * Will read the selected file with the BibReader (or in parallel for larger files), every complete
+     * block is checked if it is a bib entry. If there is an entry its position is added to the
+     * index of the document for later use.
      * The complete File will be saved as String, in order to rewrite it later.
-     * This Method will fill the table with the data from the file
+     * Large files are memory-mapped instead (see LoadMode), for those the String is only
+     * created when the file is edited
+     * This Method will fill the table with the data from the file, rows are added in batches
+     * while the file is still loading
+     * <p>
+     * Duplicates (same entry keyword) will only occur a single time in the index!
      * <p>
-     * Duplicates (same entry keyword) will only occur a single time in the map!
-     * Synchronized to prevent bugs from quickly loading various large files
+     * Every load gets a generation number, a new load supersedes all older ones: they are cancelled,
+     * stop parsing at the next entry and their results are discarded, so only the latest load
+     * changes the document and the table
      */
     public synchronized void readFileIntoTable(TableView<TableEntry> view, Label tableLabel, boolean isUndoRedo) {
+        long generation = loadGeneration.incrementAndGet();
+        BooleanSupplier superseded = () -> loadGeneration.get() != generation;
+        if (loadTask != null) loadTask.cancel(false);
+
+        ObservableList<TableEntry> items = FXCollections.observableArrayList();
+        view.setItems(items);
+        rowIndex = new TableRowIndex(items);
+        TableRowIndex rows = rowIndex;
+        view.setPlaceholder(new Label("Loading entries..."));
+        File file = selectedFile;
+        String fileName = getSelectedFileName();
+        List<TableEntry> outgoingRows = documentRows == null ? null : new ArrayList<>(documentRows.getRows());
+        BatchedListUpdater<TableEntry> updater = new BatchedListUpdater<>(items);
+        updater.setOnFlush(count -> {
+            if (superseded.getAsBoolean()) return;
+            tableLabel.setText(count + (count == 1 ? " entry so far inside: " : " entries so far inside: ") + fileName);
+        });
+
         Task<ObservableList<TableEntry>> task = new Task<>() {
             @Override
             protected ObservableList<TableEntry> call() throws Exception {
                 ObservableList<TableEntry> entries = FXCollections.observableArrayList();
-                bibMap = new TreeMap<>();
-                if (selectedFile == null) {
+                if (file == null) {
                     entries.add(new TableEntry(TableEntry.Error.FILE_NOT_FOUND));
                     return entries;
                 }
+                Consumer<TableEntry> onEntry = tableEntry -> {
+                    entries.add(tableEntry);
+                    updater.add(tableEntry);
+                };
+                String state = null;
+                ParsedFileCache.Item cached = null;
                 try {
-                    FileReader fr = new FileReader(selectedFile);
-                    BufferedReader reader = new BufferedReader(fr);
-                    String line, entry;
-                    StringBuilder builder = new StringBuilder();
-                    StringBuilder bibBuilder = new StringBuilder();
-
-                    String line2;
-                    while ((line = reader.readLine()) != null) {
-                        builder.append(line).append("\r\n");
-                        bibBuilder.append(line).append("\r\n");
-                        // ignore comment lines starting with '%'
-                        if ((!line.startsWith("%")) && bibBuilder.toString().contains("@")) {
-                            while ((line2 = reader.readLine()) != null) {
-                                builder.append(line2).append("\r\n");
-                                bibBuilder.append(line2).append("\r\n");
-                                if (line2.contains("@")) {
-                                    line = line2;
-                                    break;
-                                }
-                            }
-                            // if entry is valid and not in map add it
-                            if (!(entry = FormatChecker.basicBibTeXCheck(bibBuilder.toString())).isEmpty()) {
-
-                                TableEntry tableEntry = FormatChecker.getBibTableEntry(entry);
-                                if (tableEntry != null) {
-                                    bibMap.put(tableEntry.getKeyword(), entry);
-                                    entries.add(tableEntry);
-                                    bibBuilder.setLength(0);
-                                    bibBuilder.append(line).append("\r\n");
-                                }
+                    synchronized (lock) {
+                        writes.flushNow();
+                        compactJournal(); // journal of the last file, while its document is still there
+                    }
+                    state = stateOf(file); // before the read, a change during the read is found later
+                    cached = state == null ? null : parsedFiles.take(file, state);
+                    BibDocument loaded;
+                    EntryJournal loadedJournal = null;
+                    if (cached != null) {
+                        cached.getRows().forEach(onEntry);
+                        loaded = cached.getDocument();
+                        updater.flush();
+                    } else {
+                        LoadMode mode = getLoadMode(file);
+                        loaded = mode == LoadMode.PARALLEL ?
+                                readParallel(file, onEntry, superseded) :
+                                readSequential(file, onEntry, mode == LoadMode.MAPPED, superseded);
+                        updater.flush();
+                        loadedJournal = replayJournal(file, loaded, entries, rows);
+                    }
+
+                    synchronized (lock) {
+                        if (superseded.getAsBoolean()) throw new CancellationException();
+                        cacheDocument(file, outgoingRows);
+                        document = loaded;
+                        documentFile = file;
+                        documentState = state;
+                        unsavedMutations.clear();
+                        documentRows = rows;
+                        if (loadedJournal != null) journal = loadedJournal;
+                        watcher.watchFile(file.toPath(), path -> executor.io(() -> {
+                            synchronized (lock) {
+                                reloadIfChanged();
                             }
+                        }));
+                        if (undoRedo.isInit() || !isUndoRedo) {
+                            undoRedo.saveOperation(document.getText(), file, UndoRedoManager.Action.FILE_LOAD);
                         }
                     }
-                    reader.close();
-                    fileAsString = builder.toString();
+                    int size = loaded.size();
                     Platform.runLater(() -> {
-                        int size = bibMap.size();
-                        tableLabel.setText(size + (size == 1 ? " entry inside: " : " entries inside: ") + fileManager.getSelectedFileName());
-                    });
-
-                    if (undoRedo.isInit() || !isUndoRedo) {
-                        undoRedo.saveOperation(fileAsString, selectedFile, UndoRedoManager.Action.FILE_LOAD);
+                        if (superseded.getAsBoolean()) return;
+                        tableLabel.setText(size + (size == 1 ? " entry inside: " : " entries inside: ") + fileName);
                         undoButton.setDisable(!undoRedo.isUndoPossible());
                         redoButton.setDisable(!undoRedo.isRedoPossible());
-                    }
+                    });
 
+                } catch (CancellationException e) {
+                    // superseded by a newer load
+                    if (cached != null) parsedFiles.put(file, state, cached.getDocument(), cached.getRows());
+                    return null;
                 } catch (IOException e) {
                     System.err.println("Error reading from file!");
                     e.printStackTrace();
@@ -592,6 +866,7 @@ public class FileManager {
         };
         task.setOnSucceeded(list -> {
             ObservableList<TableEntry> result = task.getValue();
+            if (result == null || superseded.getAsBoolean()) return;
             switch (result.get(0).getError()) {
                 case NO_ENTRIES_FOUND:
                     view.getItems().clear();
@@ -605,28 +880,449 @@ public class FileManager {
                     view.getItems().clear();
                     view.setPlaceholder(new Label("Error while reading the file!"));
                     break;
-                case NONE:
-                    view.setItems(result);
+                case NONE: // rows were already added while loading
+                    view.setPlaceholder(new Label("No entries inside selected file!"));
             }
         });
 
-        Thread th = new Thread(task);
-        th.start();
+        loadTask = task;
+        executor.io(task);
 
     }
 
     /**
-     * Will search the bibMap for the selected Item and then return
+     * @param file file to load
+     * @return the mode to load the file with, AUTO is resolved depending on the file size
+     */
+    private LoadMode getLoadMode(File file) {
+        if (loadMode != LoadMode.AUTO) return loadMode;
+        long size = file.length();
+        if (size > mappedLoadThreshold) return LoadMode.MAPPED;
+        if (size > parallelLoadThreshold && Runtime.getRuntime().availableProcessors() > 1) return LoadMode.PARALLEL;
+        return LoadMode.STREAM;
+    }
+
+    /**
+     * Reads the file in a single pass with the BibReader
+     * If the entry is valid it is added, duplicates will replace the entry in the index
+     *
+     * @param file      file to read
+     * @param onEntry   called for every table entry
+     * @param mapped    if the file should be memory-mapped and not kept as String
+     * @param cancelled checked for every entry, the read stops with a CancellationException if true
+     * @return the loaded document
+     */
+    private BibDocument readSequential(File file, Consumer<TableEntry> onEntry, boolean mapped, BooleanSupplier cancelled) throws IOException {
+        try (BibReader reader = mapped ?
+                new BibReader(new MappedFileReader(file.toPath(), charset)) :
+                new BibReader(FileChannel.open(file.toPath()), charset)) {
+            StringBuilder builder = mapped ? null : new StringBuilder();
+            reader.setDocumentBuilder(builder);
+            BibDocument loaded = BibDocument.detached();
+            BibReader.Block block;
+
+            while ((block = reader.next()) != null) {
+                if (cancelled.getAsBoolean()) throw new CancellationException();
+                String text = block.getText();
+                TableEntry tableEntry = FormatChecker.getBibTableEntry(text, 0, text.length());
+                if (tableEntry != null) {
+                    BibEntry entry = tableEntry.getEntry(); // offsets inside the block
+                    loaded.put(tableEntry.getKeyword(), block.getStart() + entry.getStart(),
+                            block.getStart() + entry.getEnd(), entry.getText());
+                    onEntry.accept(tableEntry);
+                }
+            }
+            if (reader.getBrokenBlocks() > 0) {
+                reportBrokenEntries(file, reader.getBrokenBlocks(), reader.getFirstImbalance(), builder);
+            }
+            if (!mapped) loaded.attachText(builder.toString());
+            return loaded;
+        }
+    }
+
+    /**
+     * Reads the file with the ParallelBibParser, the entries are merged in file order
+     * so duplicates replace earlier entries in the index, the same way the sequential read does
+     *
+     * @param file      file to read
+     * @param onEntry   called for every table entry, already while the parse is running
+     * @param cancelled checked by every chunk, the parse stops with a CancellationException if true
+     * @return the loaded document
+     */
+    private BibDocument readParallel(File file, Consumer<TableEntry> onEntry, BooleanSupplier cancelled) throws IOException {
+        ParallelBibParser.Result result;
+        try (Reader reader = BibReader.newReader(FileChannel.open(file.toPath()), charset)) {
+            result = new ParallelBibParser(executor.getCpuPool())
+                    .parse(reader, entry -> onEntry.accept(entry.getTableEntry()), cancelled);
+        }
+        lastParallelLoad = result.getStats();
+        BibDocument loaded = new BibDocument(result.getDocument());
+        for (ParallelBibParser.Entry entry : result.getEntries()) {
+            loaded.put(entry.getTableEntry().getKeyword(), entry.getStart(), entry.getEnd());
+        }
+        if (result.getBrokenBlocks() > 0) {
+            reportBrokenEntries(file, result.getBrokenBlocks(), result.getFirstImbalance(), result.getDocument());
+        }
+        return loaded;
+    }
+
+    /**
+     * Entries with unbalanced braces are skipped while reading, tells where the first one is
+     *
+     * @param text text of the file to find the line of the imbalance, null if it is not loaded
+     */
+    private static void reportBrokenEntries(File file, int count, BraceMatcher.Imbalance first, CharSequence text) {
+        System.err.println("Skipped " + count + " entries with unbalanced braces in " + file.getName()
+                + (first == null ? "" : ", first: " + first.describe(text)));
+    }
+
+    /**
+     * Applies the journal of the loaded file to the document and the table, so both show the merged state
+     * The rows are fixed on the FX thread, after the batches that are already queued
+     *
+     * @param file    the loaded file
+     * @param loaded  the loaded document, not yet visible to other threads
+     * @param entries entries of the load task
+     * @param rows    rows of the table, can be null
+     * @return the journal, null if there is none
+     * @throws IOException if the journal or the file could not be read
+     */
+    private EntryJournal replayJournal(File file, BibDocument loaded, List<TableEntry> entries, TableRowIndex rows) throws IOException {
+        EntryJournal loadedJournal = new EntryJournal(file);
+        List<EntryJournal.Mutation> mutations = loadedJournal.read();
+        if (mutations.isEmpty()) return null;
+        applyMutations(file, loaded, mutations, entries, rows);
+        return loadedJournal;
+    }
+
+    /**
+     * Applies the mutations to the document and the table, only the last mutation of every keyword counts
+     * They are applied with a single splice, the rows are fixed on the FX thread
+     *
+     * @param file      file of the document, read if its text is not loaded
+     * @param mutations mutations in the order they were done
+     * @throws IOException if the file could not be read
+     */
+    private void applyMutations(File file, BibDocument loaded, List<EntryJournal.Mutation> mutations,
+                                List<TableEntry> entries, TableRowIndex rows) throws IOException {
+        Map<String, EntryJournal.Mutation> last = new LinkedHashMap<>();
+        for (EntryJournal.Mutation mutation : mutations) {
+            last.remove(mutation.getKeyword()); // keep the order of the last mutation
+            last.put(mutation.getKeyword(), mutation);
+        }
+        List<TableEntry> upserted = new ArrayList<>();
+        if (!loaded.isTextLoaded()) loaded.attachText(readText(file));
+        List<BibDocument.Edit> edits = new ArrayList<>();
+        for (EntryJournal.Mutation mutation : last.values()) {
+            if (mutation.isDelete()) {
+                BibDocument.Edit edit = loaded.deleteEdit(mutation.getKeyword());
+                if (edit != null) edits.add(edit);
+            } else {
+                edits.add(loaded.upsertEdit(mutation.getKeyword(), mutation.getEntry()));
+                TableEntry tableEntry = FormatChecker.getBibTableEntry(mutation.getEntry());
+                if (tableEntry != null) upserted.add(tableEntry);
+            }
+        }
+        loaded.apply(edits);
+        entries.removeIf(entry -> last.containsKey(entry.getKeyword()));
+        entries.addAll(upserted);
+        List<String> deleted = new ArrayList<>();
+        for (EntryJournal.Mutation mutation : last.values()) {
+            if (mutation.isDelete()) deleted.add(mutation.getKeyword());
+        }
+        if (rows != null) {
+            Platform.runLater(() -> {
+                rows.removeAll(deleted);
+                rows.upsertAll(upserted);
+            });
+        }
+    }
+
+    /**
+     * Entries that can not be reformatted are kept as they are
+     *
+     * @return the entry with replaced value closures
+     */
+    private static String reformatEntry(String entry, boolean toCurlyBraces) {
+        try {
+            return FormatChecker.replaceValueClosures(entry, toCurlyBraces);
+        } catch (RuntimeException e) {
+            System.err.println("Cant reformat entry, it is kept as it is: " + FormatChecker.getBibEntryKeyword(entry));
+            return entry;
+        }
+    }
+
+    /**
+     * The index is kept for the rows of the loaded file, other lists get a new one
+     * Has to be called on the FX thread
+     *
+     * @param entries rows of the table
+     * @return index of the rows
+     */
+    private TableRowIndex getRowIndex(ObservableList<TableEntry> entries) {
+        if (rowIndex == null || rowIndex.getRows() != entries) {
+            rowIndex = new TableRowIndex(entries);
+        }
+        return rowIndex;
+    }
+
+    /**
+     * Flush of the WriteScheduler, a full save writes the document as it is now
+     * Called while holding the lock
+     */
+    private void flushWrites(File file, String appendText) throws IOException {
+        if (appendText != null) {
+            saver.append(file, charset, appendText);
+        } else if (document != null && document.isTextLoaded() && file.equals(documentFile)) {
+            saver.save(file, charset, document::writeTo);
+        } else {
+            System.err.println("Cant save file, it is not loaded anymore: " + file.getName());
+        }
+        unsavedMutations.clear(); // a flush writes everything that is pending
+    }
+
+    /**
+     * Appends the mutations to the journal of the file of the document, if the journaled mode is on
+     * The document has to contain the mutations already, a compaction is scheduled
+     * Without journal the mutations are kept until they are written, see reloadIfChanged
+     * Has to be called while holding the lock
+     *
+     * @return false if the journaled mode is off and the file has to be written directly
+     * @throws IOException if the journal could not be written
+     */
+    private boolean journalMutations(List<EntryJournal.Mutation> mutations) throws IOException {
+        if (!journaled) {
+            unsavedMutations.addAll(mutations);
+            return false;
+        }
+        if (journal == null || !journal.getBibFile().equals(documentFile)) {
+            journal = new EntryJournal(documentFile);
+        }
+        journal.append(mutations, saver);
+        scheduleCompaction(journal.size() > journalCompactThreshold ? 0 : journalIdleMillis);
+        return true;
+    }
+
+    /**
+     * Replaces the pending compaction, so every edit moves the idle compaction further back
+     */
+    private void scheduleCompaction(long delayMillis) {
+        synchronized (lock) {
+            if (pendingCompaction != null) pendingCompaction.cancel(false);
+            pendingCompaction = writer.schedule(() -> {
+                synchronized (lock) {
+                    compactJournal();
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Folds the journal into its file, the document already contains all journaled mutations
+     * so it is simply saved and the journal removed afterwards
+     * Has to be called while holding the lock
+     */
+    private void compactJournal() {
+        if (journal == null || !journal.exists()) return;
+        if (document == null || !document.isTextLoaded() || !journal.getBibFile().equals(documentFile)) {
+            System.err.println("Cant compact journal, file is not loaded: " + journal.getBibFile().getName());
+            return;
+        }
+        try {
+            writes.flushNow();
+            document.trim();
+            saver.save(documentFile, charset, document::writeTo);
+            journal.discard();
+        } catch (IOException e) {
+            System.err.println("Error during journal compaction, journal is kept");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Removes the journal of a file that was written as a whole, e.g. by undo/redo
+     *
+     * @param file the .bib file
+     */
+    public void discardJournal(File file) {
+        synchronized (lock) {
+            if (file.equals(documentFile)) unsavedMutations.clear(); // the whole file was written
+            try {
+                new EntryJournal(file).discard();
+            } catch (IOException e) {
+                System.err.println("Could not delete journal of: " + file.getName());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Files loaded memory-mapped are not kept as String, so the content is read again here
+     * when an edit needs it. The FILE_LOAD operation for undo gets the content at the same time
+     * Has to be called while holding the lock
+     *
+     * @return false if the file could not be read
+     */
+    private boolean loadFileAsString() {
+        if (document == null) {
+            document = new BibDocument("");
+            documentFile = selectedFile;
+        }
+        reloadIfChanged(); // an edit must never be based on an outdated text
+        if (document.isTextLoaded()) return true;
+        try {
+            document.attachText(readText(documentFile));
+        } catch (IOException e) {
+            System.err.println("Error reading from file!");
+            e.printStackTrace();
+            return false;
+        }
+        undoRedo.completeOperations(documentFile, document.getText());
+        return true;
+    }
+
+    /**
+     * Brings the document up to date with its file, if another program changed the file since it was last
+     * read or written by the app (compared by size and modified time).
+     * Only the changed region of the text is parsed again, see BibDocument.reload, the rows of
+     * the table are patched instead of loading the whole file again
+     * <p>
+     * A pending save would overwrite the change, it is dropped and its edits are applied again on the new text,
+     * then the file is saved with them and the user is told. Pending appends are written after the change.
+     * Journaled edits are replayed on the new text
+     * Has to be called while holding the lock
+     */
+    private void reloadIfChanged() {
+        if (document == null || documentFile == null) return;
+        String state = stateOf(documentFile);
+        if (state == null || state.equals(documentState)) return;
+        List<EntryJournal.Mutation> unsaved = writes.cancelPendingSave(documentFile) ?
+                new ArrayList<>(unsavedMutations) : Collections.emptyList();
+        writes.flushNow();
+        try {
+            state = stateOf(documentFile);
+            String text = readText(documentFile);
+            BibDocument.Reload reload = document.reload(text);
+            Map<String, TableEntry> parsed = parseRegion(text, reload);
+            if (!reload.isPartial()) {
+                reload = document.reloadAll(text);
+                parsed = parseRegion(text, reload);
+            }
+            documentState = state;
+            Set<String> removed = reload.getRemoved();
+            Collection<TableEntry> upserted = parsed.values();
+            TableRowIndex rows = documentRows;
+            if (rows != null) {
+                Platform.runLater(() -> {
+                    rows.removeAll(removed);
+                    rows.upsertAll(upserted);
+                });
+            }
+            replayJournal(documentFile, document, new ArrayList<>(), rows);
+            undoRedo.saveOperation(document.getText(), documentFile, UndoRedoManager.Action.FILE_LOAD);
+            if (!unsaved.isEmpty()) {
+                applyMutations(documentFile, document, unsaved, new ArrayList<>(), rows);
+                document.trim();
+                unsavedMutations.addAll(unsaved);
+                writes.save(documentFile);
+                undoRedo.saveOperation(document.getText(), documentFile, UndoRedoManager.Action.WRITE);
+                String fileName = documentFile.getName();
+                Platform.runLater(() -> PrimaryController.throwAlert("File changed by another program!",
+                        "Your unsaved changes were applied again to the changed file: " + fileName));
+            }
+            Platform.runLater(() -> {
+                undoButton.setDisable(!undoRedo.isUndoPossible());
+                redoButton.setDisable(!undoRedo.isRedoPossible());
+            });
+        } catch (IOException e) {
+            System.err.println("Error reading changed file: " + documentFile.getName());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Parses the region of a reload and puts its entries into the document
+     *
+     * @return keyword -> table entry of all entries of the region
+     */
+    private static Map<String, TableEntry> parseRegion(String text, BibDocument.Reload reload) throws IOException {
+        Map<String, TableEntry> parsed = new LinkedHashMap<>();
+        try (BibReader reader = new BibReader(text, reload.getStart(), reload.getEnd())) {
+            BibReader.Block block;
+            while ((block = reader.next()) != null) {
+                TableEntry tableEntry = FormatChecker.getBibTableEntry(text, block.getStart(), block.getEnd());
+                if (tableEntry != null) {
+                    reload.put(tableEntry.getKeyword(), tableEntry.getEntry().getStart(), tableEntry.getEntry().getEnd());
+                    parsed.put(tableEntry.getKeyword(), tableEntry);
+                }
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * Puts the current document into the ParsedFileCache before it is replaced by another file,
+     * only if it matches its file: no journal that is not compacted yet and no reload of the same file
+     * Has to be called while holding the lock
+     *
+     * @param next file that replaces the document
+     * @param rows rows of the table of the current document
+     */
+    private void cacheDocument(File next, List<TableEntry> rows) {
+        if (document == null || documentFile == null || documentState == null || rows == null) return;
+        if (documentFile.equals(next) || new EntryJournal(documentFile).exists()) return;
+        if (!documentState.equals(stateOf(documentFile))) return;
+        parsedFiles.put(documentFile, documentState, document, rows);
+    }
+
+    /**
+     * Own writes of the document file are not changes of another program
+     */
+    private void onWritten(File file) {
+        File current = documentFile;
+        if (current != null && current.getAbsoluteFile().equals(file.getAbsoluteFile())) {
+            documentState = stateOf(current);
+        }
+    }
+
+    /**
+     * @return size and modified time of the file, null if it does not exist
+     */
+    private static String stateOf(File file) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            return attrs.size() + "@" + attrs.lastModifiedTime();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param file file to read
+     * @return the normalized content of the file, like the BibReader reads it
+     * @throws IOException if the file could not be read
+     */
+    private String readText(File file) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        try (BibReader reader = new BibReader(new MappedFileReader(file.toPath(), charset))) {
+            reader.setDocumentBuilder(builder);
+            while (reader.next() != null) ;
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Will search the document for the selected Item and then return
      * the corresponding Bib-Entry
      *
      * @param keyword item selected from bibList
      * @return selected Bib-Entry
      */
     public String getBibEntry(String keyword) {
-        if (bibMap == null || bibMap.isEmpty()) {
+        if (document == null || document.isEmpty()) {
             return "";
         } else {
-            String entry = bibMap.get(keyword);
+            String entry = document.getEntry(keyword);
             if (entry == null) {
                 return "";
             }
@@ -640,7 +1336,11 @@ public class FileManager {
      * This will happen in the whole file that is currently selected
      * e.g. [tag = "x"] will be replaced with [tag = {x}] OR other way around
      * <p>
-     * Synchronized on lock object, only one thread may write to a file change the file-String at a time
+     * The entries are copied under the lock and reformatted in parallel without it, so other edits are
+     * not blocked. The lock is then only taken to splice the new entries into the document and write it,
+     * if the document was changed in the meantime the reformat is done again on the new content.
+     * After a few changed attempts the last one is done while holding the lock.
+     * If another file was loaded in the meantime, nothing is written
      */
     public void replaceValueClosures(boolean toCurlyBraces, ActionEvent actionEvent) {
         Button b = (Button) actionEvent.getSource();
@@ -648,35 +1348,78 @@ public class FileManager {
         Task<Void> task = new Task<>() {
             @Override
             protected Void call() throws Exception {
-                synchronized (lock) {
-                    try {
-                        BufferedWriter writer = new BufferedWriter(new FileWriter(selectedFile.getAbsoluteFile(), false));
-
-                        for (Map.Entry<String, String> entry : bibMap.entrySet()
-                        ) {
-                            String oldEntry = entry.getValue();
-                            String newValue = FormatChecker.replaceValueClosures(oldEntry, toCurlyBraces) + "\r\n";
-                            fileAsString = fileAsString.replace(oldEntry.trim(), newValue.trim());
-                            bibMap.put(entry.getKey(), newValue);
+                try {
+                    for (int attempt = 1; ; attempt++) {
+                        BibDocument snapshotOf;
+                        File snapshotFile;
+                        long version;
+                        Map<String, String> entries;
+                        synchronized (lock) {
+                            if (!loadFileAsString()) return null;
+                            snapshotOf = document;
+                            snapshotFile = documentFile;
+                            version = document.getVersion();
+                            entries = document.getEntries();
                         }
-                        writer.write(fileAsString.trim() + "\r\n");
-                        writer.flush();
-                        writer.close();
-                        undoRedo.saveOperation(fileAsString, selectedFile, UndoRedoManager.Action.REFORMAT);
-                        undoButton.setDisable(!undoRedo.isUndoPossible());
-                        redoButton.setDisable(!undoRedo.isRedoPossible());
 
-                    } catch (IOException e) {
-                        System.err.println("Error writing to file");
-                        e.printStackTrace();
+                        Map<String, String> reformatted = reformatEntries(entries, toCurlyBraces);
+
+                        synchronized (lock) {
+                            if (document != snapshotOf || !snapshotFile.equals(documentFile)) {
+                                System.err.println("Another file was loaded during the reformat, nothing was written");
+                                return null;
+                            }
+                            if (document.getVersion() != version) {
+                                if (attempt < reformatAttempts) continue;
+                                reformatted = reformatEntries(document.getEntries(), toCurlyBraces);
+                            }
+                            writeReformatted(documentFile, reformatted);
+                            return null;
+                        }
                     }
+                } finally {
                     b.setDisable(false);
-                    return null;
+                }
+            }
+
+            /**
+             * Splices the reformatted entries into the document in one pass and writes it
+             * Has to be called while holding the lock
+             */
+            private void writeReformatted(File file, Map<String, String> reformatted) {
+                try {
+                    List<BibDocument.Edit> edits = new ArrayList<>();
+                    for (Map.Entry<String, String> entry : reformatted.entrySet()) {
+                        edits.add(document.upsertEdit(entry.getKey(), entry.getValue()));
+                    }
+                    document.apply(edits);
+                    document.trim();
+                    writes.flushNow();
+                    saver.save(file, charset, document::writeTo);
+                    discardJournal(file); // the whole file was written, including all journaled edits
+                    undoRedo.saveOperation(document.getText(), file, UndoRedoManager.Action.REFORMAT);
+                    undoButton.setDisable(!undoRedo.isUndoPossible());
+                    redoButton.setDisable(!undoRedo.isRedoPossible());
+
+                } catch (IOException e) {
+                    System.err.println("Error writing to file");
+                    e.printStackTrace();
                 }
             }
         };
-        Thread th = new Thread(task);
-        th.start();
+        executor.io(task);
+    }
+
+    /**
+     * Reformats the entries in parallel on the cpu pool
+     *
+     * @return keyword -> reformatted entry
+     */
+    private Map<String, String> reformatEntries(Map<String, String> entries, boolean toCurlyBraces) throws Exception {
+        Map<String, String> reformatted = new ConcurrentHashMap<>(entries.size() * 2);
+        executor.getCpuPool().submit(() -> entries.entrySet().parallelStream().forEach(entry ->
+                reformatted.put(entry.getKey(), reformatEntry(entry.getValue(), toCurlyBraces)))).get();
+        return reformatted;
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,235 @@
+package org.wst.helper;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Writes .bib files in a way that a crash or a full disk never destroys the existing file
+ * <p>
+ * save(): the new content is written to a temp file in the same directory, forced to disk and
+ * then moved over the old file with an atomic rename. Until the rename the old file stays untouched
+ * append(): the text is appended to the end of the file (O_APPEND), this can not damage the
+ * existing content, the SyncPolicy decides when the appended bytes are forced to disk
+ * <p>
+ * A symbolic link is followed, the real file is replaced and the link stays.
+ * Bytes and time of both paths are counted, see getReport for their throughput
+ */
+public class FileSaver {
+
+    /**
+     * ALWAYS: force after every append
+     * INTERVAL: force an append if the last force was longer than the sync interval ago
+     * NEVER: leave it to the OS to write the appended bytes
+     */
+    public enum SyncPolicy {
+        ALWAYS,
+        INTERVAL,
+        NEVER
+    }
+
+    /**
+     * Writes the content of a file to the given writer
+     */
+    public interface Content {
+        void writeTo(Writer writer) throws IOException;
+    }
+
+    private SyncPolicy syncPolicy = SyncPolicy.ALWAYS;
+    private long syncIntervalNanos = TimeUnit.SECONDS.toNanos(1);
+    private long lastSync;
+    private Consumer<File> onWritten;
+    private long saves, savedBytes, saveNanos;
+    private long appends, appendedBytes, appendNanos;
+
+    public void setSyncPolicy(SyncPolicy syncPolicy) {
+        this.syncPolicy = syncPolicy;
+    }
+
+    /**
+     * @param millis time between two forced appends with SyncPolicy.INTERVAL
+     */
+    public void setSyncInterval(long millis) {
+        this.syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * @param onWritten called after every successful save or append, with the written file
+     */
+    public void setOnWritten(Consumer<File> onWritten) {
+        this.onWritten = onWritten;
+    }
+
+    /**
+     * Replaces the content of the file atomically
+     * If anything fails the temp file is removed and the old file is left as it was
+     *
+     * @param file    file to replace, is created if it does not exist
+     * @param charset charset to encode the content with
+     * @param content writes the new content
+     * @throws IOException if the content could not be written or moved into place
+     */
+    public void save(File file, Charset charset, Content content) throws IOException {
+        long start = System.nanoTime();
+        Path target = file.toPath().toAbsolutePath();
+        if (Files.exists(target)) target = target.toRealPath(); // the temp file must be next to the real file
+        Path dir = target.getParent();
+        Path tmp = Files.createTempFile(dir, "." + target.getFileName(), ".tmp");
+        long bytes;
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                Writer writer = new BufferedWriter(Channels.newWriter(channel, newEncoder(charset), -1));
+                content.writeTo(writer);
+                writer.flush();
+                channel.force(true);
+                bytes = channel.size();
+            }
+            copyPermissions(target, tmp);
+            try {
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                System.err.println("Atomic move not supported, replacing file: " + target);
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        syncDirectory(dir);
+        synchronized (this) {
+            saves++;
+            savedBytes += bytes;
+            saveNanos += System.nanoTime() - start;
+        }
+        if (onWritten != null) onWritten.accept(file);
+    }
+
+    /**
+     * Appends the text to the end of the file, the existing content is never touched
+     *
+     * @param file    file to append to, is created if it does not exist
+     * @param charset charset to encode the text with
+     * @param text    text to append
+     * @throws IOException if the text could not be written
+     */
+    public void append(File file, Charset charset, String text) throws IOException {
+        long start = System.nanoTime();
+        ByteBuffer buffer = newEncoder(charset).encode(CharBuffer.wrap(text));
+        int bytes = buffer.remaining();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND, StandardOpenOption.CREATE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (shouldSync()) {
+                channel.force(false);
+                lastSync = System.nanoTime();
+            }
+        }
+        synchronized (this) {
+            appends++;
+            appendedBytes += bytes;
+            appendNanos += System.nanoTime() - start;
+        }
+        if (onWritten != null) onWritten.accept(file);
+    }
+
+    public synchronized long getSaves() {
+        return saves;
+    }
+
+    public synchronized long getSavedBytes() {
+        return savedBytes;
+    }
+
+    /**
+     * @return time of all saves, including the force and the rename
+     */
+    public synchronized long getSaveNanos() {
+        return saveNanos;
+    }
+
+    public synchronized long getAppends() {
+        return appends;
+    }
+
+    public synchronized long getAppendedBytes() {
+        return appendedBytes;
+    }
+
+    /**
+     * @return time of all appends, including the forces of the SyncPolicy
+     */
+    public synchronized long getAppendNanos() {
+        return appendNanos;
+    }
+
+    /**
+     * @return short summary of the throughput of both paths
+     */
+    public synchronized String getReport() {
+        return String.format("File saver: %d saves, %.1f MB at %.1f MB/s; %d appends, %.1f MB at %.1f MB/s",
+                saves, savedBytes / (1024.0 * 1024.0), throughput(savedBytes, saveNanos),
+                appends, appendedBytes / (1024.0 * 1024.0), throughput(appendedBytes, appendNanos));
+    }
+
+    private static double throughput(long bytes, long nanos) {
+        return nanos == 0 ? 0 : (bytes / (1024.0 * 1024.0)) / (nanos / 1_000_000_000.0);
+    }
+
+    private boolean shouldSync() {
+        switch (syncPolicy) {
+            case ALWAYS:
+                return true;
+            case INTERVAL:
+                return System.nanoTime() - lastSync >= syncIntervalNanos;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Unmappable chars are replaced, the same way a FileWriter does it
+     */
+    private static CharsetEncoder newEncoder(Charset charset) {
+        return charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * The temp file is created with owner-only permissions, the replaced file keeps its own
+     */
+    private static void copyPermissions(Path from, Path to) {
+        try {
+            PosixFileAttributeView view = Files.getFileAttributeView(from, PosixFileAttributeView.class);
+            if (view != null && Files.exists(from)) {
+                Files.setPosixFilePermissions(to, view.readAttributes().permissions());
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            System.err.println("Could not keep file permissions of: " + from);
+        }
+    }
+
+    /**
+     * Forces the rename to disk, not supported on every platform (e.g. Windows), then it is skipped
+     */
+    private static void syncDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException | UnsupportedOperationException ignored) {
+        }
+    }
+}
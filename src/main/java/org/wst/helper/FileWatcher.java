@@ -0,0 +1,174 @@
+package org.wst.helper;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Watches the selected .bib file and the directories of a scanned root with a WatchService
+ * <p>
+ * A WatchService only watches directories, so the directory of the file is registered and the events
+ * are filtered by name. Changes are debounced: a burst of events for a path (an editor that writes in
+ * several steps, a git checkout) only calls the listener once, after no event came for the delay
+ * <p>
+ * The root is not watched recursively, only the root itself and the directories that contain .bib files,
+ * so a big tree does not use up the watch limit of the OS. New subdirectories are found by the next scan
+ * <p>
+ * The events are taken on an own daemon thread "bib-watcher", it ends when the watcher is closed
+ */
+public class FileWatcher {
+    public final static long defaultDelayMillis = 300;
+
+    private final ScheduledExecutorService scheduler;
+    private long delayMillis = defaultDelayMillis;
+    private WatchService service;
+    private final Map<Path, WatchKey> keys = new HashMap<>();
+    private final Map<Path, ScheduledFuture<?>> pending = new HashMap<>();
+
+    private Path file;
+    private Consumer<Path> onFileChange;
+    private Set<Path> rootDirectories = Collections.emptySet();
+    private Consumer<Path> onRootChange;
+
+    /**
+     * @param scheduler executor that runs the debounced listeners, they should hand longer work to another thread
+     */
+    public FileWatcher(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @param millis time without events after which the listener is called
+     */
+    public void setDelay(long millis) {
+        this.delayMillis = millis;
+    }
+
+    /**
+     * Watches a single file, replaces the previously watched file
+     *
+     * @param file     file to watch
+     * @param onChange called with the file after it was changed, created or deleted
+     */
+    public synchronized void watchFile(Path file, Consumer<Path> onChange) {
+        this.file = file.toAbsolutePath().normalize();
+        this.onFileChange = onChange;
+        updateRegistrations();
+    }
+
+    /**
+     * Watches the .bib files directly inside the directories, replaces the previously watched directories
+     *
+     * @param directories root directory and the directories that contain .bib files
+     * @param onChange    called with a .bib file after it was created, changed or deleted
+     */
+    public synchronized void watchDirectories(Collection<Path> directories, Consumer<Path> onChange) {
+        Set<Path> normalized = new HashSet<>();
+        for (Path dir : directories) {
+            normalized.add(dir.toAbsolutePath().normalize());
+        }
+        this.rootDirectories = normalized;
+        this.onRootChange = onChange;
+        updateRegistrations();
+    }
+
+    /**
+     * Stops watching, pending listener calls are dropped
+     */
+    public synchronized void close() {
+        pending.values().forEach(future -> future.cancel(false));
+        pending.clear();
+        keys.clear();
+        if (service != null) {
+            try {
+                service.close(); // ends the watch loop
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            service = null;
+        }
+    }
+
+    /**
+     * Registers all directories that are needed now and cancels the others,
+     * a directory that is needed by the file and the root is only registered once
+     */
+    private void updateRegistrations() {
+        Set<Path> needed = new HashSet<>(rootDirectories);
+        if (file != null && file.getParent() != null) needed.add(file.getParent());
+        try {
+            if (service == null) {
+                service = FileSystems.getDefault().newWatchService();
+                WatchService watching = service;
+                // blocks for the whole session, a thread of the bounded io lane would be lost for other tasks
+                Thread loop = new Thread(() -> watchLoop(watching), "bib-watcher");
+                loop.setDaemon(true);
+                loop.start();
+            }
+        } catch (IOException e) {
+            System.err.println("File changes can not be watched");
+            e.printStackTrace();
+            return;
+        }
+        keys.entrySet().removeIf(entry -> {
+            if (needed.contains(entry.getKey())) return false;
+            entry.getValue().cancel();
+            return true;
+        });
+        for (Path dir : needed) {
+            if (keys.containsKey(dir)) continue;
+            try {
+                keys.put(dir, dir.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE));
+            } catch (IOException e) {
+                System.err.println("Can not watch directory: " + dir);
+            }
+        }
+    }
+
+    private void watchLoop(WatchService watching) {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watching.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    synchronized (this) { // events were lost, everything might have changed
+                        if (file != null && dir.equals(file.getParent())) debounce(file, onFileChange);
+                    }
+                    continue;
+                }
+                dispatch(dir.resolve((Path) event.context()).toAbsolutePath().normalize());
+            }
+            key.reset();
+        }
+    }
+
+    private synchronized void dispatch(Path path) {
+        if (path.equals(file)) {
+            debounce(path, onFileChange);
+        } else if (rootDirectories.contains(path.getParent()) && path.getFileName().toString().endsWith(BibFileScanner.extension)) {
+            debounce(path, onRootChange);
+        }
+    }
+
+    private void debounce(Path path, Consumer<Path> listener) {
+        if (listener == null) return;
+        ScheduledFuture<?> previous = pending.get(path);
+        if (previous != null) previous.cancel(false);
+        pending.put(path, scheduler.schedule(() -> {
+            synchronized (this) {
+                pending.remove(path);
+            }
+            listener.accept(path);
+        }, delayMillis, TimeUnit.MILLISECONDS));
+    }
+}
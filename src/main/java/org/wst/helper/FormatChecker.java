@@ -2,13 +2,15 @@ package org.wst.helper;
 
 
 import org.wst.PrimaryController;
+import org.wst.model.BibEntry;
 import org.wst.model.TableEntry;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Stack;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 // https://www.openoffice.org/bibliographic/bibtex-defs.html
 // https://www.verbosus.com/bibtex-style-examples.html
@@ -21,211 +23,124 @@ public abstract class FormatChecker {
             "editor", "howpublished", "institution", "journal", "key", "month", "note", "number", "organization",
             "pages", "publisher", "school", "series", "title", "type", "volume", "year",};
 
-    // NOTE: ^,{}\()%"'#~= not allowed in keyword, but '@' is allowed
-    public final static String keywordRegEx = "[{][^,{}\\\\()%\"'#~=]*[,]";
+    private final static Set<String> typeSet = new HashSet<>(Arrays.asList(types));
+
+    // one per thread, since whole files are reformatted in parallel
+    private final static ThreadLocal<EntryFormatter> formatters = ThreadLocal.withInitial(EntryFormatter::new);
 
 
     /**
-     * Will search for the larges possible bib entry inside the raw input from clipboard
-     * If one is found and if the curly braces are correct return the exact entry
+     * Will search for the first bib entry of a known type inside the raw input from clipboard
+     * The entry ends with the curly brace that closes its first one, see BibLexer
+     * Special blocks (@string, @preamble, @comment) and entries of other types are skipped
      *
      * @param raw input from system clipboard, that can contain a BibTeX entry
      * @return "" if no BibTeX entry is found, else the first found valid entry
      */
     public static String basicBibTeXCheck(String raw) {
-
-        String re = "[@]\\w{4,}\\s*";
-        re += keywordRegEx;
-        re += "[^@]+[}]";
-
-        Pattern pt = Pattern.compile(re);
-        Matcher mt = pt.matcher(raw);
-        String firstEntry = "";
-        if (mt.find()) { // will check for the first entry matching above regex
-            firstEntry = mt.group(0);
-            int index;
-            while (!areCurlyBracesOkay(firstEntry)) {
-                index = firstEntry.lastIndexOf('}') + 1;
-                if (index == 0) return "";
-                else if (index == firstEntry.length()) index--;
-                firstEntry = firstEntry.substring(0, index);
-            }
-            index = firstEntry.lastIndexOf('}') + 1;
-            if (index == 0) return "";
-            else firstEntry = firstEntry.substring(0, index);
-
-            String type = firstEntry.substring(firstEntry.indexOf("@") + 1, firstEntry.indexOf("{")).trim();
-            if (Arrays.asList(types).contains(type.toLowerCase())) {
-                //firstEntry = replaceQuotationMarks(firstEntry);
-                firstEntry += "\r\n";
-                return firstEntry;
-            } else {
-                return "";
-            }
-        }
-        return firstEntry;
+        BibLexer.Entry entry = firstKnownEntry(raw, 0, raw.length());
+        return entry == null ? "" : entry.getText() + "\r\n";
     }
 
     /**
-     * Will check if the placement of curly braces for this entry is valid
-     * Invalid if:  - unequal amount,
-     * - closing } before opening {,
-     * - opening after stack is already empty
-     *
-     * @param entry entry to check
-     * @return if valid
+     * @param text  text that can contain BibTeX entries
+     * @param start first char to scan
+     * @param end   index after the last char to scan
+     * @return first entry with one of the known types or null, scans only as far as needed
      */
-    private static boolean areCurlyBracesOkay(String entry) {
-        Stack<Character> stack = new Stack<>();
-
-        char c;
-        boolean foundOneBrace = false;
-        for (int i = 0; i < entry.length(); i++) {
-            c = entry.charAt(i);
-            if (c == '{') {
-                if (stack.isEmpty() && foundOneBrace) return false;
-                stack.push(c);
-                foundOneBrace = true;
-            } else if (c == '}') {
-                if (stack.empty()) return false;
-                else if (stack.peek() == '{') stack.pop();
-                else return false;
-            }
+    private static BibLexer.Entry firstKnownEntry(CharSequence text, int start, int end) {
+        BibLexer lexer = new BibLexer(text, start, end);
+        BibLexer.Entry entry;
+        while ((entry = lexer.next()) != null) {
+            if (isKnownEntry(entry)) return entry;
         }
-        return (stack.empty() && foundOneBrace);
+        return null;
     }
 
-    // https://www.logicbig.com/tutorials/core-java-tutorial/java-regular-expressions/regex-lookahead.html
-    // todo add config for this!
+    /**
+     * @return true if it is no special block and has one of the known types
+     */
+    static boolean isKnownEntry(BibLexer.Entry entry) {
+        return entry.getKind() == BibLexer.Kind.ENTRY && typeSet.contains(entry.getType().toLowerCase());
+    }
 
     /**
      * Will take a valid bib entry and replace the ""/{} for each value after an tag
      * e.g.: title = "this is a title" <-> title = {this is a title}
      * but e.g.: year = 2002 wont be changed, but year = "2002" <-> year = {2002}
-     * and e.g.: title = "{}" will become {{}} or """"
+     * and e.g.: title = "{}" will become {{}} or ""
+     * The entry is also written with one field per line, see EntryFormatter
      *
      * @param entry valid bib entry
-     * @return same as input but "" <-> {}
+     * @return same as input but "" <-> {}, the input if it contains no entry
      */
     public static String replaceValueClosures(String entry, boolean toCurlyBraces) {
-        String[] lines = entry.split("([,])(?=\\s*\\w+\\s*[=])");
-        StringBuilder builder = new StringBuilder();
-        boolean hadCommaAtEnd = false;
-
-        if (lines.length < 2) return entry;
-        builder.append(lines[0]).append(",");
-        for (int i = 1; i < lines.length; i++) {
-            String[] tagAndValue = lines[i].split("(?<==)", 2);
-            if (i == lines.length - 1) {
-                String tmp = tagAndValue[1].trim();
-                tmp = tmp.substring(0, tmp.length() - 1).trim();
-                tagAndValue[1] = tmp;
-
-                if (tmp.lastIndexOf(",") == tmp.length() - 1) {
-                    tmp = tmp.substring(0, tmp.length() - 1).trim();
-                    if (tmp.endsWith("\"") || tmp.endsWith("}")) {
-                        hadCommaAtEnd = true;
-                        tagAndValue[1] = tmp;
-                    }
-                }
-            }
-            char[] value = tagAndValue[1].trim().toCharArray();
-            if (toCurlyBraces) {
-                if (value[0] == '"' && value[value.length - 1] == '"') {
-                    value[0] = '{';
-                    value[value.length - 1] = '}';
-                }
-            } else {
-                if (value[0] == '{' && value[value.length - 1] == '}') {
-                    value[0] = '"';
-                    value[value.length - 1] = '"';
-                }
-            }
-
-            builder.append("\r\n    ").append(tagAndValue[0].trim()).append(" ").append(value).append(",");
+        BibLexer lexer = new BibLexer(entry);
+        BibLexer.Entry lexed;
+        while ((lexed = lexer.next()) != null) {
+            if (lexed.getKind() == BibLexer.Kind.ENTRY) return formatEntry(lexed.toBibEntry(), toCurlyBraces);
         }
-        if (!hadCommaAtEnd) builder.setLength(builder.length() - 1);
-        builder.append("\r\n}");
+        return entry;
+    }
 
+    /**
+     * @param entry parsed entry
+     * @return the entry with one field per line and "" <-> {}, without line break at the end
+     */
+    public static String formatEntry(BibEntry entry, boolean toCurlyBraces) {
+        EntryFormatter formatter = formatters.get();
+        formatter.setClosure(toCurlyBraces ? EntryFormatter.Closure.CURLY : EntryFormatter.Closure.QUOTES);
+        StringBuilder builder = new StringBuilder(entry.getEnd() - entry.getStart() + 64);
+        formatter.format(entry, builder);
         return builder.toString();
     }
 
     /**
-     * Will return the first BibEntry-Keyword in a given string or null if none is found
+     * Will return the BibEntry-Keyword of the first entry in a given string or null if none is found
      *
-     * @param line a string that can contain a BibEntry-Head
+     * @param line a string that can contain a BibEntry
      * @return first BibEntry-Keyword in a given String
      */
     public static String getBibEntryKeyword(String line) {
-        String re = "[@]\\w{4,}\\s*";
-        re += keywordRegEx;
-        Pattern pt = Pattern.compile(re);
-        Matcher mt = pt.matcher(line);
-        if (mt.find()) {
-            String entryHead = mt.group(0);
-            String type = entryHead.substring(entryHead.indexOf("@") + 1, entryHead.indexOf("{")).trim().toUpperCase();
-            if (Arrays.asList(types).contains(type.toLowerCase())) {
-                return entryHead.substring(entryHead.indexOf("{") + 1, entryHead.indexOf(",")).trim();
-            }
-        }
-        return null;
+        BibLexer.Entry entry = firstKnownEntry(line, 0, line.length());
+        return entry == null ? null : entry.getKey();
     }
 
     /**
-     * Creates a new TableEntry to store important values from the given Bib-Entry
-     * If a value is not given "none" is stored
+     * Creates a new TableEntry to show the important values from the given Bib-Entry
+     * The values are only read when they are shown, if a value is not given "none" is shown
      *
      * @param entry valid Bib-Entry
      * @return tableEntry for the TableView in the App
      */
     public static TableEntry getBibTableEntry(String entry) {
-        String keyword = getBibEntryKeyword(entry);
-        if (keyword != null) {
-            String type = entry.substring(entry.indexOf("@") + 1, entry.indexOf("{")).trim().toUpperCase();
-            String[] lines = entry.split("([,])(?=\\s*\\w+\\s*[=])");
-            String author = "none", title = "none", year = "none", url = "none", doi = "none";
-
-            for (int i = 1; i < lines.length; i++) {
-                String[] tagAndValue = lines[i].split("=", 2);
-                switch (tagAndValue[0].toUpperCase().trim()) {
-                    case "AUTHOR":
-                        author = removeClosure(tagAndValue[1]);
-                        break;
-                    case "TITLE":
-                        title = removeClosure(tagAndValue[1]);
-                        break;
-                    case "YEAR":
-                        year = tagAndValue[1].trim().replaceAll("[\n\r]*(\\s+)", " ")
-                                .replaceAll("[\"{},]", "").trim();
-                        break;
-                    case "URL":
-                    case "OPTURL":
-                        url = removeClosure(tagAndValue[1]);
-                        break;
-                    case "DOI":
-                    case "OPTDOI":
-                        doi = removeClosure(tagAndValue[1]);
-                }
-            }
-            return new TableEntry(keyword, type, title, author, year, url, doi);
-        } else return null;
+        return getBibTableEntry(entry, 0, entry.length());
     }
 
     /**
-     * Removes the closure from the given string
-     * Each value in a Bib-Entry can have 0 to multiple closures,
-     * that are either "" or {} or combinations of those
+     * Same as getBibTableEntry(String), but reads the entry directly from a larger text without copying it
+     * The row keeps a reference to the text, so it must not change anymore
      *
-     * @param str string with closure
-     * @return string without closure
+     * @param text  text that contains the entry, e.g. a whole file
+     * @param start first char of the entry block
+     * @param end   index after the entry block
+     * @return tableEntry for the TableView in the App, its BibEntry has offsets inside the text, or null
      */
-    private static String removeClosure(String str) {
-        str = str.trim().replaceAll("[\n\r]*(\\s+)", " ");
-        while ((str.startsWith("{") && str.endsWith("}")) ||
-                (str.startsWith("\"") && str.endsWith("\""))) {
-            str = str.substring(1, str.length() - 1);
-        }
-        return str.trim();
+    public static TableEntry getBibTableEntry(CharSequence text, int start, int end) {
+        BibLexer.Entry lexed = firstKnownEntry(text, start, end);
+        return lexed == null ? null : new TableEntry(lexed.toBibEntry());
+    }
+
+    /**
+     * Scans the whole text for an entry whose braces are never closed
+     *
+     * @param text raw text from textArea
+     * @return where the braces of the first broken entry are unbalanced, null if all entries are closed
+     */
+    public static BraceMatcher.Imbalance findImbalance(String text) {
+        BibLexer lexer = new BibLexer(text);
+        while (lexer.next() != null) ;
+        return lexer.getFirstImbalance();
     }
 
     /**
@@ -236,16 +151,18 @@ public abstract class FormatChecker {
      * @return all bib entries in the given text block (no complete duplicates)
      */
     public static ArrayList<String> getBibEntries(String text) {
-        ArrayList<String> entries = new ArrayList<>();
-
-        String entry;
-        while (!(entry = basicBibTeXCheck(text)).isEmpty()) {
-            String correctClosure = replaceValueClosures(entry, PrimaryController.isToCurlyMode());
-            entries.add(correctClosure + "\r\n");
-            if (text.length() > entry.length()) {
-                text = text.replace(entry.substring(0, entry.length() - 2), "");
-            } else break;
-        }
-        return entries;
+        return streamBibEntries(text).collect(Collectors.toCollection(ArrayList::new));
+    }
+
+    /**
+     * Same as getBibEntries, but the text is only scanned as far as the entries are used
+     *
+     * @param text raw text from textArea
+     * @return bib entries with the closures of the current mode, in the order of the text (no complete duplicates)
+     */
+    public static Stream<String> streamBibEntries(String text) {
+        boolean toCurly = PrimaryController.isToCurlyMode();
+        return EntryExtractor.stream(text, FormatChecker::isKnownEntry)
+                .map(entry -> formatEntry(entry.toBibEntry(), toCurly) + "\r\n");
     }
 }
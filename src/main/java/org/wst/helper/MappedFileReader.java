@@ -0,0 +1,98 @@
+package org.wst.helper;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reader that memory-maps a file window by window and decodes it in fixed-size chunks
+ * Only a single window is mapped and a single chunk of chars is on the heap at any time,
+ * so even very large files can be parsed without having their whole content in memory
+ * <p>
+ * Malformed input is replaced, the same way a FileReader would do it
+ * Note: the mapping is only released by the GC, the reader drops its reference on close
+ */
+public class MappedFileReader extends Reader {
+    public final static int defaultWindowSize = 64 * 1024 * 1024;
+    public final static int defaultChunkSize = 64 * 1024;
+
+    private final FileChannel channel;
+    private final long size;
+    private final int windowSize;
+    private final CharsetDecoder decoder;
+    private final CharBuffer chars;
+    private ByteBuffer window;
+    private long windowStart;
+    private boolean finished;
+
+    public MappedFileReader(Path path, Charset charset) throws IOException {
+        this(path, charset, defaultWindowSize, defaultChunkSize);
+    }
+
+    public MappedFileReader(Path path, Charset charset, int windowSize, int chunkSize) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.size = channel.size();
+        this.windowSize = windowSize;
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.chars = CharBuffer.allocate(chunkSize);
+        this.chars.flip();
+        mapWindow(0);
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        while (!chars.hasRemaining()) {
+            if (!fill()) return -1;
+        }
+        int n = Math.min(len, chars.remaining());
+        chars.get(cbuf, off, n);
+        return n;
+    }
+
+    /**
+     * Decodes the next chunk, a new window is mapped when the current one is used up,
+     * bytes of a char that is split between two windows are mapped again with the next window
+     *
+     * @return false if there are no chars left
+     */
+    private boolean fill() throws IOException {
+        if (finished) return false;
+        chars.clear();
+        while (chars.position() == 0 && !finished) {
+            boolean last = windowStart + window.limit() == size;
+            CoderResult result = decoder.decode(window, chars, last);
+            if (result.isUnderflow()) {
+                if (last) {
+                    decoder.flush(chars);
+                    finished = true;
+                } else {
+                    mapWindow(windowStart + window.position());
+                }
+            }
+        }
+        chars.flip();
+        return chars.hasRemaining();
+    }
+
+    private void mapWindow(long position) throws IOException {
+        windowStart = position;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(windowSize, size - position));
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+}
@@ -0,0 +1,392 @@
+package org.wst.helper;
+
+import org.wst.model.TableEntry;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Parses a single .bib file with all cores of a ForkJoinPool
+ * <p>
+ * A fast sequential pre-scan normalizes the text (like the BibReader) and remembers safe
+ * split points, these are '@' at the start of a line with brace depth 0 (top level). The BibReader always
+ * starts a new block at such a position, so the chunks can be parsed independently and give the
+ * same entries as a sequential run. The chunks are parsed with fork/join and merged in file order
+ */
+public class ParallelBibParser {
+    public final static int defaultChunkSize = 256 * 1024;
+
+    private final ForkJoinPool pool;
+    private final int chunkSize;
+
+    public ParallelBibParser(ForkJoinPool pool) {
+        this(pool, defaultChunkSize);
+    }
+
+    /**
+     * @param pool      pool to parse the chunks on
+     * @param chunkSize minimal amount of chars per chunk
+     */
+    public ParallelBibParser(ForkJoinPool pool, int chunkSize) {
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+    }
+
+    public Result parse(Reader reader) throws IOException {
+        return parse(reader, null);
+    }
+
+    /**
+     * Reads the whole input and parses it in parallel
+     * The consumer gets the entries in file order while the parse is still running, as soon as
+     * all chunks before a finished chunk are done. The calls come from different threads but
+     * are never concurrent
+     *
+     * @param reader  input, is not closed
+     * @param onEntry called for every valid entry, can be null
+     * @return all valid entries in file order, the normalized document and timings
+     * @throws IOException if the reader fails
+     */
+    public Result parse(Reader reader, Consumer<Entry> onEntry) throws IOException {
+        return parse(reader, onEntry, () -> false);
+    }
+
+    /**
+     * Same as parse(reader, onEntry), but stops as soon as the parse is cancelled:
+     * the pre-scan checks the flag regularly and every chunk checks it for every entry,
+     * so the threads of the pool are free again right after the cancel
+     *
+     * @param cancelled checked while parsing
+     * @throws CancellationException if the parse was cancelled
+     */
+    public Result parse(Reader reader, Consumer<Entry> onEntry, BooleanSupplier cancelled) throws IOException {
+        long start = System.nanoTime();
+        StringBuilder builder = new StringBuilder();
+        List<Integer> splits = preScan(reader, builder, cancelled);
+        String document = builder.toString();
+        long scanned = System.nanoTime();
+
+        AtomicLong workNanos = new AtomicLong();
+        Delivery delivery = new Delivery(splits.size() - 1, onEntry);
+        BrokenBlocks broken = new BrokenBlocks();
+        List<Entry> entries = pool.invoke(new ChunkTask(document, splits, 0, splits.size() - 1, workNanos, delivery,
+                broken, cancelled));
+        long parsed = System.nanoTime();
+
+        return new Result(document, entries, splits.size() - 1, scanned - start, parsed - scanned, workNanos.get(), broken);
+    }
+
+    /**
+     * Normalizes the input into the builder and collects the split points
+     *
+     * @return offsets of the chunk borders, including 0 and the document length
+     */
+    private List<Integer> preScan(Reader reader, StringBuilder builder, BooleanSupplier cancelled) throws IOException {
+        List<Integer> splits = new ArrayList<>();
+        splits.add(0);
+        BibReader normalizer = new BibReader(reader);
+        normalizer.setDocumentBuilder(builder);
+
+        // braces are only counted inside an entry, with the same BraceMatcher the BibReader uses
+        BraceMatcher braces = new BraceMatcher();
+        int lastSplit = 0;
+        boolean inEntry = false;
+        boolean inBody = false;
+        boolean inComment = false;
+        boolean lineStart = true;
+        boolean onlyBlanksInLine = true;
+        int c;
+        while ((c = normalizer.readChar()) != -1) {
+            if (inComment) {
+                inComment = c != '\n';
+            } else if (c == '@' && (!inEntry || onlyBlanksInLine)) {
+                if (!inBody && onlyBlanksInLine) {
+                    int offset = builder.length() - 1;
+                    if (offset - lastSplit >= chunkSize) {
+                        if (cancelled.getAsBoolean()) throw new CancellationException();
+                        splits.add(offset);
+                        lastSplit = offset;
+                    }
+                }
+                inEntry = true;
+                inBody = false;
+            } else if (inEntry) {
+                if (!inBody) {
+                    if (c == '{') {
+                        braces.start(builder.length() - 1);
+                        inBody = true;
+                    } else if (c == '}') {
+                        inEntry = false;
+                    }
+                } else if (braces.accept((char) c, builder.length() - 1) < 0 && braces.isClosed()) {
+                    inEntry = false;
+                    inBody = false;
+                }
+            } else if (c == '%' && lineStart) {
+                inComment = true;
+            }
+            lineStart = c == '\n';
+            onlyBlanksInLine = lineStart || (onlyBlanksInLine && (c == ' ' || c == '\t' || c == '\r'));
+        }
+        splits.add(builder.length());
+        return splits;
+    }
+
+    /**
+     * Parses the chunks [from, to), splits the range in half until a single chunk is left
+     */
+    private static class ChunkTask extends RecursiveTask<List<Entry>> {
+        private static final long serialVersionUID = 1L;
+        private final String document;
+        private final List<Integer> splits;
+        private final int from, to;
+        private final AtomicLong workNanos;
+        private final Delivery delivery;
+        private final BrokenBlocks broken;
+        private final BooleanSupplier cancelled;
+
+        ChunkTask(String document, List<Integer> splits, int from, int to, AtomicLong workNanos, Delivery delivery,
+                  BrokenBlocks broken, BooleanSupplier cancelled) {
+            this.document = document;
+            this.splits = splits;
+            this.from = from;
+            this.to = to;
+            this.workNanos = workNanos;
+            this.delivery = delivery;
+            this.broken = broken;
+            this.cancelled = cancelled;
+        }
+
+        @Override
+        protected List<Entry> compute() {
+            if (cancelled.getAsBoolean()) throw new CancellationException();
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                ChunkTask left = new ChunkTask(document, splits, from, mid, workNanos, delivery, broken, cancelled);
+                ChunkTask right = new ChunkTask(document, splits, mid, to, workNanos, delivery, broken, cancelled);
+                left.fork();
+                List<Entry> second = right.compute();
+                List<Entry> first = left.join();
+                // new list, the lists of the chunks might still be read by the delivery
+                List<Entry> merged = new ArrayList<>(first.size() + second.size());
+                merged.addAll(first);
+                merged.addAll(second);
+                return merged;
+            }
+            long cpuStart = cpuTime();
+            List<Entry> entries = new ArrayList<>();
+            if (from < to) {
+                try (BibReader reader = new BibReader(document, splits.get(from), splits.get(to))) {
+                    BibReader.Block block;
+                    while ((block = reader.next()) != null) {
+                        if (cancelled.getAsBoolean()) throw new CancellationException();
+                        // the rows share the document, no entry is copied
+                        TableEntry tableEntry = FormatChecker.getBibTableEntry(document, block.getStart(), block.getEnd());
+                        if (tableEntry != null) entries.add(new Entry(tableEntry));
+                    }
+                    broken.add(reader);
+                } catch (IOException e) { // can not happen, the text is already in memory
+                    throw new IllegalStateException(e);
+                }
+            }
+            workNanos.addAndGet(cpuTime() - cpuStart);
+            if (from < to) delivery.complete(from, entries);
+            return entries;
+        }
+
+        /**
+         * CPU time is used, wall time would also count the time the thread waits for a core
+         */
+        private static long cpuTime() {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            return bean.isCurrentThreadCpuTimeSupported() ? bean.getCurrentThreadCpuTime() : System.nanoTime();
+        }
+    }
+
+    /**
+     * Passes the entries of finished chunks to the consumer in file order,
+     * a chunk is only passed on when all chunks before it are finished
+     */
+    private static class Delivery {
+        private final List<List<Entry>> finished;
+        private final Consumer<Entry> consumer;
+        private int next;
+
+        Delivery(int chunks, Consumer<Entry> consumer) {
+            this.finished = new ArrayList<>(Collections.nCopies(chunks, null));
+            this.consumer = consumer;
+        }
+
+        synchronized void complete(int chunk, List<Entry> entries) {
+            if (consumer == null) return;
+            finished.set(chunk, entries);
+            while (next < finished.size() && finished.get(next) != null) {
+                for (Entry entry : finished.get(next)) {
+                    consumer.accept(entry);
+                }
+                finished.set(next++, Collections.emptyList());
+            }
+        }
+    }
+
+    /**
+     * Blocks with unbalanced braces that the BibReaders of all chunks dropped
+     */
+    private static class BrokenBlocks {
+        private int count;
+        private BraceMatcher.Imbalance first;
+
+        synchronized void add(BibReader reader) {
+            count += reader.getBrokenBlocks();
+            BraceMatcher.Imbalance imbalance = reader.getFirstImbalance();
+            if (imbalance != null && (first == null || imbalance.getEntryStart() < first.getEntryStart())) first = imbalance;
+        }
+    }
+
+    /**
+     * A valid entry with its table entry, the position is the one of its BibEntry inside the document
+     */
+    public static class Entry {
+        private final TableEntry tableEntry;
+
+        public Entry(TableEntry tableEntry) {
+            this.tableEntry = tableEntry;
+        }
+
+        /**
+         * @return the raw entry, cut out of the document
+         */
+        public String getText() {
+            return tableEntry.getEntry().getText();
+        }
+
+        public TableEntry getTableEntry() {
+            return tableEntry;
+        }
+
+        public int getStart() {
+            return tableEntry.getEntry().getStart();
+        }
+
+        public int getEnd() {
+            return tableEntry.getEntry().getEnd();
+        }
+    }
+
+    /**
+     * Result of a parallel parse, the entries are in file order (including duplicate keys)
+     */
+    public static class Result {
+        private final String document;
+        private final List<Entry> entries;
+        private final Stats stats;
+        private final int brokenBlocks;
+        private final BraceMatcher.Imbalance firstImbalance;
+
+        Result(String document, List<Entry> entries, int chunks, long scanNanos, long parseNanos, long workNanos,
+               BrokenBlocks broken) {
+            this.document = document;
+            this.entries = entries;
+            this.stats = new Stats(entries.size(), chunks, scanNanos, parseNanos, workNanos);
+            synchronized (broken) {
+                this.brokenBlocks = broken.count;
+                this.firstImbalance = broken.first;
+            }
+        }
+
+        public String getDocument() {
+            return document;
+        }
+
+        public List<Entry> getEntries() {
+            return entries;
+        }
+
+        /**
+         * @return amount of dropped blocks whose braces were not closed
+         */
+        public int getBrokenBlocks() {
+            return brokenBlocks;
+        }
+
+        /**
+         * @return the dropped block that comes first in the document, null if none was dropped
+         */
+        public BraceMatcher.Imbalance getFirstImbalance() {
+            return firstImbalance;
+        }
+
+        /**
+         * @return timings of the parse, they do not keep the document
+         */
+        public Stats getStats() {
+            return stats;
+        }
+    }
+
+    /**
+     * Timings of a parallel parse
+     */
+    public static class Stats {
+        private final int entries;
+        private final int chunks;
+        private final long scanNanos, parseNanos, workNanos;
+
+        Stats(int entries, int chunks, long scanNanos, long parseNanos, long workNanos) {
+            this.entries = entries;
+            this.chunks = chunks;
+            this.scanNanos = scanNanos;
+            this.parseNanos = parseNanos;
+            this.workNanos = workNanos;
+        }
+
+        public int getChunks() {
+            return chunks;
+        }
+
+        /**
+         * @return wall time of the sequential pre-scan that finds the chunks
+         */
+        public long getScanNanos() {
+            return scanNanos;
+        }
+
+        /**
+         * @return wall time of the parallel parse of all chunks
+         */
+        public long getParseNanos() {
+            return parseNanos;
+        }
+
+        /**
+         * The sum of the CPU time spent in every chunk is the time a sequential parse would need.
+         * The pre-scan is part of both sides, so the speedup is the one of the whole read
+         *
+         * @return speedup of pre-scan and parse against a sequential read
+         */
+        public double getSpeedup() {
+            long parallel = scanNanos + parseNanos;
+            return parallel == 0 ? 1 : (double) (scanNanos + workNanos) / parallel;
+        }
+
+        /**
+         * @return short summary of the parse
+         */
+        public String getReport() {
+            return String.format("Parsed %d entries in %d chunks: pre-scan %d ms, parse %d ms (sequential %d ms, speedup %.2fx)",
+                    entries, chunks, scanNanos / 1_000_000, parseNanos / 1_000_000,
+                    (scanNanos + workNanos) / 1_000_000, getSpeedup());
+        }
+    }
+}
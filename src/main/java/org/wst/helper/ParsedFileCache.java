@@ -0,0 +1,137 @@
+package org.wst.helper;
+
+import org.wst.model.BibDocument;
+import org.wst.model.TableEntry;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * LRU cache of parsed files: the document (text and index) and the rows of the table,
+ * so switching back to a file that did not change restores it without reading or parsing it
+ * <p>
+ * A file is only valid for the size and modified time it had when it was parsed, the caller passes this
+ * state in and an item with another state is dropped. The cache is bounded by the estimated heap size of
+ * the items, the least recently used ones are evicted first
+ * <p>
+ * Documents are mutable, an item is taken out of the cache when it is used again and put back
+ * when another file replaces it, so a cached document is never edited
+ */
+public class ParsedFileCache {
+    private final long maxBytes;
+    private final LinkedHashMap<File, Item> items = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hits, misses, evictions;
+
+    /**
+     * @param maxBytes maximal estimated heap size of all cached files
+     */
+    public ParsedFileCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Takes the file out of the cache
+     *
+     * @param file  parsed file
+     * @param state size and modified time of the file now
+     * @return the cached item or null if the file is not cached or changed since
+     */
+    public synchronized Item take(File file, String state) {
+        Item item = items.remove(file.getAbsoluteFile());
+        if (item != null) bytes -= item.bytes;
+        if (item != null && item.state.equals(state)) {
+            hits++;
+            return item;
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * Adds a parsed file, evicts the least recently used files until the cache is small enough again
+     * A file that is larger than the whole cache is not added
+     *
+     * @param file     parsed file
+     * @param state    size and modified time of the file, matching the document
+     * @param document document of the file, must not be changed anymore
+     * @param rows     rows of the table
+     */
+    public synchronized void put(File file, String state, BibDocument document, List<TableEntry> rows) {
+        Item item = new Item(state, document, rows);
+        Item old = items.remove(file.getAbsoluteFile());
+        if (old != null) bytes -= old.bytes;
+        if (item.bytes > maxBytes) return;
+        items.put(file.getAbsoluteFile(), item);
+        bytes += item.bytes;
+        Iterator<Item> eldest = items.values().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().bytes;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized void clear() {
+        items.clear();
+        bytes = 0;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return estimated heap size of all cached files
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return short summary of the cache for the console
+     */
+    public synchronized String getReport() {
+        long lookups = hits + misses;
+        return String.format("Parsed file cache: %d hits, %d misses (%.0f%% hits), %d evictions, %d files, %.1f of %.1f MB",
+                hits, misses, lookups == 0 ? 0.0 : 100.0 * hits / lookups, evictions, items.size(),
+                bytes / (1024.0 * 1024.0), maxBytes / (1024.0 * 1024.0));
+    }
+
+    /**
+     * A cached file
+     */
+    public static class Item {
+        private final String state;
+        private final BibDocument document;
+        private final List<TableEntry> rows;
+        private final long bytes;
+
+        Item(String state, BibDocument document, List<TableEntry> rows) {
+            this.state = state;
+            this.document = document;
+            this.rows = rows;
+            long size = document.estimateBytes();
+            for (TableEntry row : rows) {
+                size += row.estimateBytes();
+            }
+            this.bytes = size;
+        }
+
+        public BibDocument getDocument() {
+            return document;
+        }
+
+        public List<TableEntry> getRows() {
+            return rows;
+        }
+    }
+}
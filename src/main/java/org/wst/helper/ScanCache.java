@@ -0,0 +1,226 @@
+package org.wst.helper;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * On-disk cache of directory scans, one file per root directory inside the config directory of the user
+ * <p>
+ * A snapshot keeps for every scanned directory its last modified time, the .bib files and the subdirectories
+ * inside it. Adding, removing or renaming an entry changes the modified time of a directory, so a rescan
+ * only has to list the directories whose time changed, all others are taken from the snapshot
+ * <p>
+ * The file is a text file with one directory per "D modified path" line, followed by its
+ * "F name" (.bib files) and "S name" (subdirectories) lines. It is written with the FileSaver,
+ * so a crash never leaves a broken cache behind
+ */
+public class ScanCache {
+    private final static String header = "BibTeXManager scan cache 1";
+
+    private final Path directory;
+    private final FileSaver saver = new FileSaver();
+
+    /**
+     * @param directory directory to store the cache files in, is created on the first store
+     */
+    public ScanCache(Path directory) {
+        this.directory = directory;
+        saver.setSyncPolicy(FileSaver.SyncPolicy.NEVER);
+    }
+
+    /**
+     * @return cache inside the config directory of the user: %APPDATA% on Windows, else $XDG_CONFIG_HOME or ~/.config
+     */
+    public static ScanCache getDefault() {
+        String base = System.getenv("APPDATA");
+        if (base == null) base = System.getenv("XDG_CONFIG_HOME");
+        if (base == null) base = System.getProperty("user.home") + File.separator + ".config";
+        return new ScanCache(Paths.get(base, "BibTeXManager", "scan-cache"));
+    }
+
+    /**
+     * @param root      root directory of the scan
+     * @param signature signature of the ScanRules of the scan
+     * @return the snapshot of the last complete scan of the root with the same rules, null if there is none
+     */
+    public Snapshot load(Path root, String signature) {
+        Path root0 = root.toAbsolutePath().normalize();
+        Path file = fileOf(root0);
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            if (!header.equals(reader.readLine()) || !root0.toString().equals(reader.readLine())
+                    || !signature.equals(reader.readLine())) {
+                return null;
+            }
+            Snapshot snapshot = new Snapshot(root0);
+            Directory current = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() < 2) continue;
+                char kind = line.charAt(0);
+                String value = line.substring(2);
+                if (kind == 'D') {
+                    int space = value.indexOf(' ');
+                    current = new Directory(Long.parseLong(value.substring(0, space)));
+                    snapshot.directories.put(value.substring(space + 1), current);
+                } else if (current != null && kind == 'F') {
+                    current.files.add(value);
+                } else if (current != null && kind == 'S') {
+                    current.subdirectories.add(value);
+                }
+            }
+            return snapshot;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error reading scan cache, the root is scanned again: " + file);
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the cached snapshot of the root, incomplete snapshots are not stored
+     *
+     * @param snapshot  snapshot of a scan
+     * @param signature signature of the ScanRules of the scan
+     */
+    public void store(Snapshot snapshot, String signature) {
+        if (!snapshot.isComplete()) return;
+        Path file = fileOf(snapshot.root);
+        try {
+            Files.createDirectories(directory);
+            saver.save(file.toFile(), StandardCharsets.UTF_8, writer -> {
+                writer.write(header + "\n" + snapshot.root + "\n" + signature + "\n");
+                for (Map.Entry<String, Directory> entry : snapshot.directories.entrySet()) {
+                    if (hasLineBreak(entry.getKey())) continue;
+                    Directory dir = entry.getValue();
+                    List<String> files = dir.getFiles();
+                    List<String> subdirectories = dir.getSubdirectories();
+                    // names with line breaks can not be stored, the directory is listed again next time
+                    boolean complete = files.stream().noneMatch(ScanCache::hasLineBreak)
+                            && subdirectories.stream().noneMatch(ScanCache::hasLineBreak);
+                    writer.write("D " + (complete ? dir.modified : -1) + " " + entry.getKey() + "\n");
+                    for (String name : files) {
+                        if (!hasLineBreak(name)) writer.write("F " + name + "\n");
+                    }
+                    for (String name : subdirectories) {
+                        if (!hasLineBreak(name)) writer.write("S " + name + "\n");
+                    }
+                }
+            });
+        } catch (IOException e) {
+            System.err.println("Error writing scan cache: " + file);
+            e.printStackTrace();
+        }
+    }
+
+    private static boolean hasLineBreak(String name) {
+        return name.indexOf('\n') >= 0 || name.indexOf('\r') >= 0;
+    }
+
+    private Path fileOf(Path root) {
+        String hash = Integer.toHexString(root.toString().hashCode());
+        String name = root.getFileName() == null ? "root" : root.getFileName().toString().replaceAll("[^\\w.-]", "_");
+        return directory.resolve(name + "-" + hash + ".cache");
+    }
+
+    /**
+     * Result of a scan: all directories of the tree by their path relative to the root ("" is the root itself)
+     * Filled concurrently by the tasks of the BibFileScanner
+     */
+    public static class Snapshot {
+        private final Path root;
+        private final Map<String, Directory> directories = new ConcurrentHashMap<>();
+        private boolean complete = true;
+
+        public Snapshot(Path root) {
+            this.root = root.toAbsolutePath().normalize();
+        }
+
+        public Path getRoot() {
+            return root;
+        }
+
+        /**
+         * @param relative path relative to the root
+         * @return the directory or null if it was not scanned
+         */
+        public Directory get(String relative) {
+            return directories.get(relative);
+        }
+
+        void put(String relative, Directory dir) {
+            directories.put(relative, dir);
+        }
+
+        public int size() {
+            return directories.size();
+        }
+
+        /**
+         * @return false if the scan was cancelled or stopped by a limit
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+
+        void setComplete(boolean complete) {
+            this.complete = complete;
+        }
+
+        /**
+         * @return all .bib files of the snapshot
+         */
+        public List<File> getFiles() {
+            List<File> files = new ArrayList<>();
+            directories.forEach((relative, dir) -> {
+                Path path = root.resolve(relative);
+                for (String name : dir.getFiles()) {
+                    files.add(path.resolve(name).toFile());
+                }
+            });
+            return files;
+        }
+    }
+
+    /**
+     * A scanned directory, a modified time of -1 marks a directory that is always listed again
+     */
+    public static class Directory {
+        private final long modified;
+        private final List<String> files = new ArrayList<>();
+        private final List<String> subdirectories = new ArrayList<>();
+
+        public Directory(long modified) {
+            this.modified = modified;
+        }
+
+        public long getModified() {
+            return modified;
+        }
+
+        public synchronized List<String> getFiles() {
+            return new ArrayList<>(files);
+        }
+
+        public synchronized List<String> getSubdirectories() {
+            return new ArrayList<>(subdirectories);
+        }
+
+        synchronized void addFile(String name) {
+            files.add(name);
+        }
+
+        synchronized void addSubdirectory(String name) {
+            subdirectories.add(name);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package org.wst.helper;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decides which parts of a directory tree the BibFileScanner skips
+ * <p>
+ * Ignore patterns use the gitignore style: a pattern without '/' is matched against the name at any depth,
+ * a pattern with a leading or inner '/' against the path relative to the root, a trailing '/' only matches
+ * directories and a leading '!' includes a path again. The last matching pattern wins.
+ * Globs are the ones of FileSystem.getPathMatcher, e.g. "*.tmp", "texmf*&#47;", "docs/**&#47;old"
+ * <p>
+ * The rules of a scan are the defaults, the optional ".bibignore" file in the root and the limits
+ */
+public class ScanRules {
+    public final static String ignoreFileName = ".bibignore";
+
+    /**
+     * Directories that never contain bibliographies of the user: version control, dependencies,
+     * build output and TeX distributions
+     */
+    public final static List<String> defaultPatterns = Arrays.asList(
+            ".git/", ".svn/", ".hg/", "node_modules/", ".gradle/", ".idea/", "build/", "target/",
+            "texmf*/", "texlive/", "miktex/", "MiKTeX/");
+
+    private final List<Rule> rules = new ArrayList<>();
+    private int maxDepth = Integer.MAX_VALUE;
+    private long maxFiles = Long.MAX_VALUE;
+
+    /**
+     * Rules without any pattern or limit
+     */
+    public ScanRules() {
+    }
+
+    /**
+     * @return rules with the default patterns and no limits
+     */
+    public static ScanRules defaults() {
+        ScanRules rules = new ScanRules();
+        defaultPatterns.forEach(rules::addPattern);
+        return rules;
+    }
+
+    /**
+     * @param root root directory of a scan
+     * @return copy of these rules, with the patterns of the .bibignore file of the root added at the end
+     */
+    public ScanRules withIgnoreFile(Path root) {
+        ScanRules copy = new ScanRules();
+        copy.rules.addAll(rules);
+        copy.maxDepth = maxDepth;
+        copy.maxFiles = maxFiles;
+        Path ignoreFile = root.resolve(ignoreFileName);
+        if (Files.isRegularFile(ignoreFile)) {
+            try {
+                Files.readAllLines(ignoreFile, StandardCharsets.UTF_8).forEach(copy::addPattern);
+            } catch (IOException e) {
+                System.err.println("Error reading ignore file: " + ignoreFile);
+                e.printStackTrace();
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Adds a single gitignore style pattern, blank lines and comments ('#') are skipped
+     *
+     * @param pattern pattern to add
+     */
+    public void addPattern(String pattern) {
+        String glob = pattern.strip();
+        if (glob.isEmpty() || glob.startsWith("#")) return;
+        boolean include = glob.startsWith("!");
+        if (include) glob = glob.substring(1);
+        boolean directoryOnly = glob.endsWith("/");
+        if (directoryOnly) glob = glob.substring(0, glob.length() - 1);
+        boolean anchored = glob.contains("/");
+        if (glob.startsWith("/")) glob = glob.substring(1);
+        if (glob.isEmpty()) return;
+        try {
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+            rules.add(new Rule(pattern.strip(), matcher, include, directoryOnly, anchored));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid ignore pattern: " + pattern);
+        }
+    }
+
+    /**
+     * @param relative path relative to the root of the scan
+     * @param directory if the path is a directory
+     * @return true if the path (and everything below it) is skipped
+     */
+    public boolean isIgnored(Path relative, boolean directory) {
+        if (relative.getNameCount() == 0 || relative.toString().isEmpty()) return false; // the root itself
+        boolean ignored = false;
+        for (Rule rule : rules) {
+            if (rule.directoryOnly && !directory) continue;
+            Path target = rule.anchored ? relative : relative.getFileName();
+            if (rule.matcher.matches(target)) ignored = !rule.include;
+        }
+        return ignored;
+    }
+
+    /**
+     * @return one line that is equal for equal rules, a cached scan is only valid for the same rules
+     */
+    public String getSignature() {
+        StringBuilder builder = new StringBuilder().append(maxDepth).append(' ').append(maxFiles);
+        for (Rule rule : rules) {
+            builder.append('\t').append(rule.pattern);
+        }
+        return builder.toString();
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * @param maxDepth directories deeper than this below the root are skipped, the root has depth 0
+     */
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    public long getMaxFiles() {
+        return maxFiles;
+    }
+
+    /**
+     * @param maxFiles the scan stops after it looked at this many files, guard against huge trees
+     */
+    public void setMaxFiles(long maxFiles) {
+        this.maxFiles = maxFiles;
+    }
+
+    private static class Rule {
+        private final String pattern;
+        private final PathMatcher matcher;
+        private final boolean include, directoryOnly, anchored;
+
+        Rule(String pattern, PathMatcher matcher, boolean include, boolean directoryOnly, boolean anchored) {
+            this.pattern = pattern;
+            this.matcher = matcher;
+            this.include = include;
+            this.directoryOnly = directoryOnly;
+            this.anchored = anchored;
+        }
+    }
+}
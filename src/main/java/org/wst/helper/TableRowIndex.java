@@ -0,0 +1,104 @@
+package org.wst.helper;
+
+import javafx.collections.ListChangeListener;
+import javafx.collections.ObservableList;
+import org.wst.model.TableEntry;
+
+import java.util.*;
+
+/**
+ * Index from the keyword of an entry to its row in the table, kept in sync with the rows by a listener
+ * Appended and replaced rows update the index directly, any other change (delete, sort, ...)
+ * marks it as outdated and it is rebuilt once on the next lookup
+ * If a keyword is in multiple rows, the last one is indexed
+ * <p>
+ * Must only be used on the FX thread, like the rows themselves
+ */
+public class TableRowIndex {
+    private final ObservableList<TableEntry> rows;
+    private final Map<String, Integer> index = new HashMap<>();
+    private boolean outdated = true;
+
+    public TableRowIndex(ObservableList<TableEntry> rows) {
+        this.rows = rows;
+        rows.addListener(this::onChanged);
+    }
+
+    public ObservableList<TableEntry> getRows() {
+        return rows;
+    }
+
+    /**
+     * @param keyword keyword of the entry
+     * @return row of the entry or -1 if it is not in the table
+     */
+    public int indexOf(String keyword) {
+        if (outdated) rebuild();
+        Integer row = index.get(keyword);
+        return row == null ? -1 : row;
+    }
+
+    /**
+     * Replaces the rows of entries that are already in the table and appends all others
+     * with a single addAll, so the table only gets one change for the new rows
+     *
+     * @param entries entries to show in the table
+     */
+    public void upsertAll(Collection<TableEntry> entries) {
+        Map<String, TableEntry> added = new LinkedHashMap<>();
+        for (TableEntry entry : entries) {
+            if (entry == null) continue;
+            int row = indexOf(entry.getKeyword());
+            if (row >= 0) {
+                rows.set(row, entry);
+            } else {
+                added.put(entry.getKeyword(), entry);
+            }
+        }
+        if (!added.isEmpty()) rows.addAll(added.values());
+    }
+
+    /**
+     * Removes all rows of the given keywords
+     *
+     * @param keywords keywords of the entries to remove
+     */
+    public void removeAll(Collection<String> keywords) {
+        Set<String> set = keywords instanceof Set ? (Set<String>) keywords : new HashSet<>(keywords);
+        rows.removeIf(entry -> set.contains(entry.getKeyword()));
+    }
+
+    private void onChanged(ListChangeListener.Change<? extends TableEntry> change) {
+        while (change.next()) {
+            if (outdated) continue;
+            if (change.wasPermutated() || change.wasUpdated()) {
+                outdated = true;
+            } else if (change.wasReplaced() && change.getRemovedSize() == change.getAddedSize()) {
+                List<? extends TableEntry> removed = change.getRemoved();
+                for (int i = 0; i < removed.size(); i++) {
+                    int row = change.getFrom() + i;
+                    index.remove(removed.get(i).getKeyword(), row);
+                    put(change.getList().get(row).getKeyword(), row);
+                }
+            } else if (change.wasAdded() && !change.wasRemoved() && change.getTo() == change.getList().size()) {
+                for (int row = change.getFrom(); row < change.getTo(); row++) {
+                    put(change.getList().get(row).getKeyword(), row);
+                }
+            } else {
+                outdated = true;
+            }
+        }
+    }
+
+    private void rebuild() {
+        index.clear();
+        for (int row = 0; row < rows.size(); row++) {
+            put(rows.get(row).getKeyword(), row);
+        }
+        outdated = false;
+    }
+
+    private void put(String keyword, int row) {
+        if (keyword != null) index.put(keyword, row);
+    }
+}
@@ -1,17 +1,18 @@
 package org.wst.helper;
 
+import org.wst.model.PieceTable;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.LinkedList;
 
 /**
  * Class to handle undo and redo of any file-operations in the app
  * A linkedList is used as a stack where the last 10 moves are stored with
- * the complete file content as string, the File pointer as well as the action performed
+ * the complete file content, the File pointer as well as the action performed
  * to get to that state
+ * The content is an immutable PieceTable version, all versions of a file share their buffers,
+ * so a stored move does not hold a full copy of the file
  */
 public class UndoRedoManager {
     private UndoRedoManager() {
@@ -50,7 +51,7 @@ public class UndoRedoManager {
      * @param file         file pointer
      * @param action       to get to this file content
      */
-    public void saveOperation(String fileAsString, File file, Action action) {
+    public void saveOperation(PieceTable fileAsString, File file, Action action) {
         synchronized (fileManager.getLock()) {
             if (pointer == stackSize) {
                 history.add(new Operation(action, file, fileAsString));
@@ -75,12 +76,14 @@ public class UndoRedoManager {
     public Action undoLastFileOperation() {
         synchronized (fileManager.getLock()) {
             if (!isUndoPossible()) return Action.NONE_LEFT;
+            fileManager.flushPendingWrites(); // a pending write must not overwrite the undone state later
             Operation op = history.get(--pointer);
             try {
-                BufferedWriter writer = new BufferedWriter(new FileWriter(op.getFile().getAbsoluteFile(), false));
-                writer.write(op.getFileAsString());
-                writer.flush();
-                writer.close();
+                // no content means the file was loaded mapped and never changed since
+                if (op.getFileAsString() != null) {
+                    fileManager.getFileSaver().save(op.getFile(), fileManager.getCharset(), op.getFileAsString()::writeTo);
+                    fileManager.discardJournal(op.getFile());
+                }
 
                 fileManager.setSelectedFile(op.getFile());
                 return history.get(pointer + 1).getAction();
@@ -102,13 +105,14 @@ public class UndoRedoManager {
     public Action redoLastFileOperation() {
         synchronized (fileManager.getLock()) {
             if (++pointer < history.size()) {
+                fileManager.flushPendingWrites();
                 Operation op = history.get(pointer);
 
                 try {
-                    BufferedWriter writer = new BufferedWriter(new FileWriter(op.getFile().getAbsoluteFile(), false));
-                    writer.write(op.getFileAsString());
-                    writer.flush();
-                    writer.close();
+                    if (op.getFileAsString() != null) {
+                        fileManager.getFileSaver().save(op.getFile(), fileManager.getCharset(), op.getFileAsString()::writeTo);
+                        fileManager.discardJournal(op.getFile());
+                    }
 
                     fileManager.setSelectedFile(op.getFile());
                     return op.getAction();
@@ -123,6 +127,23 @@ public class UndoRedoManager {
         }
     }
 
+    /**
+     * Operations of memory-mapped loads are saved without content, as soon as the
+     * content is read for an edit it is added to every such operation of the file
+     *
+     * @param file         file pointer
+     * @param fileAsString file content as it was loaded
+     */
+    public void completeOperations(File file, PieceTable fileAsString) {
+        synchronized (fileManager.getLock()) {
+            for (Operation op : history) {
+                if (op.getFileAsString() == null && op.getFile().equals(file)) {
+                    op.setFileAsString(fileAsString);
+                }
+            }
+        }
+    }
+
     public boolean isUndoPossible() {
         return pointer > 0 && !(history.size() == 1);
     }
@@ -142,14 +163,14 @@ public class UndoRedoManager {
 
     /**
      * Helper class to store operations, each one having an action a file pointer
-     * and the file-content as a string
+     * and the file-content as a PieceTable version
      */
     private static class Operation {
         private final Action action;
         private final File file;
-        private final String fileAsString;
+        private PieceTable fileAsString;
 
-        public Operation(Action action, File file, String fileAsString) {
+        public Operation(Action action, File file, PieceTable fileAsString) {
             this.action = action;
             this.file = file;
             this.fileAsString = fileAsString;
@@ -163,9 +184,13 @@ public class UndoRedoManager {
             return file;
         }
 
-        public String getFileAsString() {
+        public PieceTable getFileAsString() {
             return fileAsString;
         }
+
+        public void setFileAsString(PieceTable fileAsString) {
+            this.fileAsString = fileAsString;
+        }
     }
 }
 
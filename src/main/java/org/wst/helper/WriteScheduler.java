@@ -0,0 +1,144 @@
+package org.wst.helper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single writer for the edits of a file, all writes that are requested within a short window
+ * are coalesced into one flush on the executor:
+ * appends are joined in their order, a full save already contains everything and replaces them
+ * <p>
+ * The window starts with the first pending write, so a flush is never delayed longer than the window
+ * A write for another file flushes the pending writes of the last file first
+ * All state is guarded by the lock of the FileManager, the flush is called while holding it
+ */
+public class WriteScheduler {
+    public final static long defaultDelayMillis = 100;
+
+    /**
+     * Does the actual write of a flush
+     */
+    public interface Flush {
+        /**
+         * @param file       file to write
+         * @param appendText text to append, null if the file has to be saved as a whole
+         * @throws IOException if the write fails
+         */
+        void write(File file, String appendText) throws IOException;
+    }
+
+    private final Object lock;
+    private final ScheduledExecutorService executor;
+    private final Flush flush;
+    private long delayMillis = defaultDelayMillis;
+
+    private File file;
+    private final StringBuilder pendingAppend = new StringBuilder();
+    private boolean pendingSave;
+    private ScheduledFuture<?> scheduled;
+
+    /**
+     * @param lock     lock that guards the file content
+     * @param executor single thread executor to flush on
+     * @param flush    writes the file
+     */
+    public WriteScheduler(Object lock, ScheduledExecutorService executor, Flush flush) {
+        this.lock = lock;
+        this.executor = executor;
+        this.flush = flush;
+    }
+
+    /**
+     * @param millis length of the window in which writes are coalesced
+     */
+    public void setDelay(long millis) {
+        this.delayMillis = millis;
+    }
+
+    /**
+     * Appends the text to the file with the next flush
+     */
+    public void append(File file, String text) {
+        synchronized (lock) {
+            switchTo(file);
+            if (!pendingSave) pendingAppend.append(text);
+            schedule();
+        }
+    }
+
+    /**
+     * Saves the whole file with the next flush
+     */
+    public void save(File file) {
+        synchronized (lock) {
+            switchTo(file);
+            pendingSave = true;
+            pendingAppend.setLength(0);
+            schedule();
+        }
+    }
+
+    /**
+     * Barrier: writes everything that is pending right now, on the calling thread
+     * Used before the file is written or read by someone else (undo, load, shutdown)
+     */
+    public void flushNow() {
+        synchronized (lock) {
+            if (scheduled != null) {
+                scheduled.cancel(false);
+                scheduled = null;
+            }
+            flushPending();
+        }
+    }
+
+    /**
+     * Drops a pending save of the file, e.g. because the file was changed by another program
+     * and the save would overwrite that change
+     *
+     * @return true if a save was pending
+     */
+    public boolean cancelPendingSave(File file) {
+        synchronized (lock) {
+            if (!pendingSave || !file.equals(this.file)) return false;
+            if (scheduled != null) {
+                scheduled.cancel(false);
+                scheduled = null;
+            }
+            pendingSave = false;
+            pendingAppend.setLength(0);
+            return true;
+        }
+    }
+
+    private void switchTo(File file) {
+        if (this.file != null && !this.file.equals(file)) flushNow();
+        this.file = file;
+    }
+
+    private void schedule() {
+        if (scheduled != null) return;
+        scheduled = executor.schedule(() -> {
+            synchronized (lock) {
+                scheduled = null;
+                flushPending();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void flushPending() {
+        if (!pendingSave && pendingAppend.length() == 0) return;
+        try {
+            flush.write(file, pendingSave ? null : pendingAppend.toString());
+        } catch (IOException e) {
+            System.err.println("Error writing to file: " + file.getName());
+            e.printStackTrace();
+        } finally {
+            pendingSave = false;
+            pendingAppend.setLength(0);
+        }
+    }
+}
@@ -0,0 +1,546 @@
+package org.wst.model;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+
+/**
+ * The content of a .bib file together with an index of the position of every entry
+ * The index maps each entry keyword to the (start, end) span of the entry inside the text,
+ * if a keyword occurs multiple times, the last entry wins (like the old bibMap)
+ * <p>
+ * All changes are done with splices: the edits are sorted by position and the new text is built
+ * in a single pass. The text is a PieceTable, so a splice only copies the pieces and the new
+ * entries, not the whole file, and every version of the text can be kept for undo cheaply
+ * <p>
+ * Files that are loaded memory-mapped have no text at first, the entries are then kept
+ * on their own until the text is attached for the first edit
+ */
+public class BibDocument {
+    private PieceTable text;
+    private final Map<String, Span> index = new HashMap<>();
+    private Map<String, String> detachedEntries;
+    private final Set<String> duplicates = new HashSet<>(); // keywords that hide an earlier entry
+    private long version;
+
+    public BibDocument(String text) {
+        this.text = text == null ? null : new PieceTable(text);
+        if (text == null) this.detachedEntries = new HashMap<>();
+    }
+
+    /**
+     * @return a document without text, for memory-mapped files
+     */
+    public static BibDocument detached() {
+        return new BibDocument(null);
+    }
+
+    /**
+     * Adds an entry to the index, an older entry with the same keyword is replaced
+     *
+     * @param keyword keyword of the entry
+     * @param start   offset of the leading '@'
+     * @param end     offset after the closing '}'
+     * @param entry   the raw entry from '@' to '}', only kept if the document has no text
+     */
+    public void put(String keyword, int start, int end, String entry) {
+        if (index.put(keyword, new Span(start, end)) != null) duplicates.add(keyword);
+        if (detachedEntries != null) detachedEntries.put(keyword, entry);
+    }
+
+    /**
+     * Adds an entry of a document with text to the index, an older entry with the same keyword is replaced
+     *
+     * @param keyword keyword of the entry
+     * @param start   offset of the leading '@'
+     * @param end     offset after the closing '}'
+     */
+    public void put(String keyword, int start, int end) {
+        put(keyword, start, end, null);
+    }
+
+    /**
+     * Sets the text of a detached document, the spans of the index have to match it
+     *
+     * @param text full content of the file
+     */
+    public void attachText(String text) {
+        this.version++;
+        this.text = new PieceTable(text);
+        this.detachedEntries = null;
+    }
+
+    public boolean isTextLoaded() {
+        return text != null;
+    }
+
+    /**
+     * @return the current version of the text, it is immutable and can be kept as a snapshot
+     */
+    public PieceTable getText() {
+        return text;
+    }
+
+    /**
+     * Writes the text without creating a String of the whole file
+     *
+     * @param writer writer to write to, is not closed
+     * @throws IOException if the writer fails
+     */
+    public void writeTo(Writer writer) throws IOException {
+        text.writeTo(writer);
+    }
+
+    public boolean containsKey(String keyword) {
+        return index.containsKey(keyword);
+    }
+
+    /**
+     * @param keyword keyword of the entry
+     * @return the entry followed by a line break (like the FormatChecker returns it) or null
+     */
+    public String getEntry(String keyword) {
+        Span span = index.get(keyword);
+        if (span == null) return null;
+        if (text == null) return detachedEntries.get(keyword) + "\r\n";
+        return text.substring(span.start, span.end) + "\r\n";
+    }
+
+    /**
+     * Every change of the text increases the version, so a copy of the entries can be checked
+     * for being still up to date
+     *
+     * @return current version of the text
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return keyword -> entry (like getEntry returns it) of all entries, a copy that does not change with the document
+     */
+    public Map<String, String> getEntries() {
+        Map<String, String> entries = new HashMap<>(index.size() * 2);
+        for (String keyword : index.keySet()) {
+            entries.put(keyword, getEntry(keyword));
+        }
+        return entries;
+    }
+
+    public Set<String> keySet() {
+        return Collections.unmodifiableSet(index.keySet());
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    public boolean isEmpty() {
+        return index.isEmpty();
+    }
+
+    /**
+     * @return rough heap size of the text and the index in bytes, for caches
+     */
+    public long estimateBytes() {
+        long bytes = 0;
+        if (text != null) bytes += 2L * text.length() + 32L * text.getPieceCount();
+        if (detachedEntries != null) {
+            for (String entry : detachedEntries.values()) {
+                bytes += 40 + 2L * entry.length();
+            }
+        }
+        for (String keyword : index.keySet()) {
+            bytes += 100 + 2L * keyword.length(); // map node, span and key
+        }
+        return bytes;
+    }
+
+    /**
+     * Replaces the entry with the given keyword, or appends it at the end
+     * if there is no entry with this keyword yet
+     *
+     * @param keyword keyword of the entry
+     * @param entry   new entry, trailing line breaks are ignored
+     */
+    public void upsert(String keyword, String entry) {
+        apply(Collections.singletonList(upsertEdit(keyword, entry)));
+    }
+
+    /**
+     * Batch upsert: every entry is classified as unchanged, changed or new, then all changes are
+     * applied in one ordered pass, changed entries are replaced in place and new ones appended
+     * in the given order
+     *
+     * @param entries keyword -> new entry, trailing line breaks are ignored
+     * @return the counts and the changes of the upsert
+     */
+    public UpsertSummary upsertAll(Map<String, String> entries) {
+        UpsertSummary summary = new UpsertSummary();
+        List<Edit> edits = new ArrayList<>();
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            String keyword = entry.getKey();
+            String newEntry = entry.getValue();
+            String stripped = newEntry.stripTrailing();
+            Span span = index.get(keyword);
+            if (span == null) {
+                Edit edit = upsertEdit(keyword, newEntry);
+                edits.add(edit);
+                summary.appended.append(edit.getReplacement());
+                summary.inserted++;
+            } else if (span.end - span.start == stripped.length() && text.startsWith(stripped, span.start)) {
+                summary.unchanged++;
+                continue;
+            } else {
+                edits.add(upsertEdit(keyword, newEntry));
+                summary.updated++;
+            }
+            summary.changes.put(keyword, newEntry);
+        }
+        apply(edits);
+        return summary;
+    }
+
+    /**
+     * @return an edit that replaces the entry in place or appends it on a new line
+     */
+    public Edit upsertEdit(String keyword, String entry) {
+        Span span = index.get(keyword);
+        if (span != null) return new Edit(span.start, span.end, keyword, "", entry.stripTrailing(), "");
+        int end = text.length();
+        return new Edit(end, end, keyword, "\r\n", entry.stripTrailing(), "\r\n");
+    }
+
+    /**
+     * The line of the entry is removed, and also the blank line in front of it, if there is one,
+     * so deleting an entry does not leave its separating empty line behind
+     * The removed ranges of two entries never overlap, the blank line between them belongs to the second
+     *
+     * @return an edit that removes the entry, or null if the keyword is unknown
+     */
+    public Edit deleteEdit(String keyword) {
+        Span span = index.get(keyword);
+        if (span == null) return null;
+        int start = span.start;
+        if (text.startsWith("\r\n", start - 2) && (start == 2 || text.startsWith("\r\n", start - 4))) {
+            start -= 2; // leading blank line
+        }
+        int end = text.startsWith("\r\n", span.end) ? span.end + 2 : span.end;
+        return new Edit(start, end, keyword, "", null, "");
+    }
+
+    /**
+     * Removes all entries with the given keywords in a single pass, the spans are sorted and only
+     * the surviving ranges are kept, so the cost does not depend on the amount of deleted entries
+     *
+     * @param keywords entries to delete, unknown keywords are ignored
+     * @return amount of deleted entries
+     */
+    public int deleteEntries(Collection<String> keywords) {
+        List<Edit> edits = new ArrayList<>();
+        for (String keyword : keywords) {
+            Edit edit = deleteEdit(keyword);
+            if (edit != null) edits.add(edit);
+        }
+        apply(edits);
+        return edits.size();
+    }
+
+    /**
+     * Applies all edits in a single pass over the text and moves the spans of all
+     * other entries accordingly. Edits are sorted by position, an edit that overlaps
+     * a previous one is skipped. Appended edits (start == end == length) keep their order
+     *
+     * @param edits edits on the current text
+     */
+    public void apply(List<Edit> edits) {
+        if (edits.isEmpty()) return;
+        version++;
+        List<Edit> sorted = new ArrayList<>(edits);
+        sorted.sort(Comparator.comparingInt(e -> e.start)); // stable, keeps order of appends
+
+        PieceTable.Builder builder = text.builder();
+        int[] starts = new int[sorted.size()];
+        int[] shifts = new int[sorted.size()];
+        int applied = 0;
+        int pos = 0;
+        int shift = 0;
+        for (Edit edit : sorted) {
+            if (edit.start < pos) continue; // overlaps a previous edit
+            builder.append(text, pos, edit.start);
+            if (edit.keyword != null) index.remove(edit.keyword);
+            builder.append(edit.prefix);
+            if (edit.entry != null) {
+                int start = builder.length();
+                builder.append(edit.entry);
+                index.put(edit.keyword, new Span(start, builder.length(), true));
+            }
+            builder.append(edit.suffix);
+            pos = edit.end;
+            shift += edit.getReplacementLength() - (edit.end - edit.start);
+            starts[applied] = edit.start;
+            shifts[applied++] = shift;
+        }
+        builder.append(text, pos, text.length());
+
+        // move all spans that were not edited, by the shift of the last edit before them
+        for (Span span : index.values()) {
+            if (span.moved) {
+                span.moved = false;
+                continue;
+            }
+            int i = lastEditBefore(starts, applied, span.start);
+            if (i >= 0) {
+                span.start += shifts[i];
+                span.end += shifts[i];
+            }
+        }
+        text = builder.build();
+    }
+
+    private static int lastEditBefore(int[] starts, int count, int offset) {
+        int low = 0, high = count - 1, result = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (starts[mid] <= offset) {
+                result = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Replaces the text with a new version of the file, e.g. after another program changed it
+     * Only the entries around the changed region (between the common prefix and suffix of the old
+     * and the new text) are dropped from the index, all other spans are kept and moved.
+     * The returned region starts and ends at entry borders, it has to be parsed again and its
+     * entries added with Reload.put
+     * <p>
+     * A document without text can not be compared, then the whole text is the region
+     *
+     * @param newText full new content of the file, normalized like the BibReader reads it
+     * @return the region of the new text that has to be parsed again
+     */
+    public Reload reload(String newText) {
+        if (text == null) return reloadAll(newText);
+        version++;
+        int oldLength = text.length();
+        int prefix = text.commonPrefixLength(newText);
+        int suffix = text.commonSuffixLength(newText, Math.min(oldLength, newText.length()) - prefix);
+        int changeEnd = oldLength - suffix;
+        int shift = newText.length() - oldLength;
+
+        // start of the last entry before the change, the end of its block might have changed
+        int start = 0;
+        int end = oldLength;
+        for (Span span : index.values()) {
+            if (span.start < prefix) start = Math.max(start, span.start);
+            if (span.start > changeEnd) end = Math.min(end, span.start);
+        }
+        Set<String> removed = new HashSet<>();
+        Iterator<Map.Entry<String, Span>> iterator = index.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Span> entry = iterator.next();
+            Span span = entry.getValue();
+            if (span.start >= end) {
+                span.start += shift;
+                span.end += shift;
+            } else if (span.start >= start) {
+                removed.add(entry.getKey());
+                iterator.remove();
+            }
+        }
+        Reload reload = new Reload(start, end + shift, removed);
+        text = new PieceTable(newText);
+        return reload;
+    }
+
+    /**
+     * Like reload, but the whole text is the region, e.g. if Reload.isPartial is false
+     */
+    public Reload reloadAll(String newText) {
+        version++;
+        Reload reload = new Reload(0, newText.length(), new HashSet<>(index.keySet()));
+        index.clear();
+        duplicates.clear();
+        detachedEntries = null;
+        text = new PieceTable(newText);
+        return reload;
+    }
+
+    /**
+     * Removes any empty lines and whitespaces at the start and the end of the text,
+     * the text will end with a single line break
+     */
+    public void trim() {
+        int start = 0;
+        int end = text.length();
+        while (start < end && text.charAt(start) <= ' ') start++; // same as String.trim
+        while (end > start && text.charAt(end - 1) <= ' ') end--;
+        if (start == 0 && end + 2 == text.length() && text.startsWith("\r\n", end)) return;
+        version++;
+        PieceTable.Builder builder = text.builder().append(text, start, end);
+        if (end > start) builder.append("\r\n");
+        text = builder.build();
+        if (start > 0) {
+            for (Span span : index.values()) {
+                span.start -= start;
+                span.end -= start;
+            }
+        }
+    }
+
+    /**
+     * Region of a reloaded text that has to be parsed again
+     */
+    public class Reload {
+        private final int start;
+        private final int end;
+        private final Set<String> removed;
+
+        private Reload(int start, int end, Set<String> removed) {
+            this.start = start;
+            this.end = end;
+            this.removed = removed;
+        }
+
+        public int getStart() {
+            return start;
+        }
+
+        public int getEnd() {
+            return end;
+        }
+
+        /**
+         * Adds a parsed entry of the region, entries have to be added in file order
+         * An entry with the same keyword after the region stays in the index, like in a full parse
+         */
+        public void put(String keyword, int start, int end) {
+            Span span = index.get(keyword);
+            if (span != null) duplicates.add(keyword);
+            if (span != null && span.start >= this.end) return;
+            index.put(keyword, new Span(start, end));
+        }
+
+        /**
+         * An entry that was removed can hide an earlier entry with the same keyword outside the region,
+         * that one is not in the index, then the whole text has to be parsed with reloadAll
+         *
+         * @return false if the region is not enough, only valid after all entries of the region are put
+         */
+        public boolean isPartial() {
+            for (String keyword : getRemoved()) {
+                if (duplicates.contains(keyword)) return false;
+            }
+            return true;
+        }
+
+        /**
+         * @return keywords of the entries that were in the region before and are not in the document anymore
+         */
+        public Set<String> getRemoved() {
+            Set<String> gone = new HashSet<>(removed);
+            gone.removeAll(index.keySet());
+            return gone;
+        }
+    }
+
+    /**
+     * Result of a batch upsert
+     */
+    public static class UpsertSummary {
+        private int inserted, updated, unchanged;
+        private final StringBuilder appended = new StringBuilder();
+        private final Map<String, String> changes = new LinkedHashMap<>();
+
+        public int getInserted() {
+            return inserted;
+        }
+
+        public int getUpdated() {
+            return updated;
+        }
+
+        public int getUnchanged() {
+            return unchanged;
+        }
+
+        public boolean isNothingChanged() {
+            return inserted == 0 && updated == 0;
+        }
+
+        /**
+         * @return the text that was appended to the end, enough to write the file if nothing was updated
+         */
+        public String getAppendedText() {
+            return appended.toString();
+        }
+
+        /**
+         * @return keyword -> entry of all inserted and updated entries, in the given order
+         */
+        public Map<String, String> getChanges() {
+            return Collections.unmodifiableMap(changes);
+        }
+    }
+
+    /**
+     * A single change of the text: [start, end) is replaced by prefix + entry + suffix
+     * If the entry is null the keyword is removed from the index, else it points to the new entry
+     */
+    public static class Edit {
+        private final int start;
+        private final int end;
+        private final String keyword;
+        private final String prefix;
+        private final String entry;
+        private final String suffix;
+
+        public Edit(int start, int end, String keyword, String prefix, String entry, String suffix) {
+            this.start = start;
+            this.end = end;
+            this.keyword = keyword;
+            this.prefix = prefix;
+            this.entry = entry;
+            this.suffix = suffix;
+        }
+
+        /**
+         * @return true if the edit only inserts text
+         */
+        public boolean isInsert() {
+            return start == end;
+        }
+
+        /**
+         * @return the text that is put at the position of the edit
+         */
+        public String getReplacement() {
+            return entry == null ? prefix + suffix : prefix + entry + suffix;
+        }
+
+        private int getReplacementLength() {
+            return prefix.length() + (entry == null ? 0 : entry.length()) + suffix.length();
+        }
+    }
+
+    private static class Span {
+        private int start;
+        private int end;
+        private boolean moved;
+
+        Span(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        Span(int start, int end, boolean moved) {
+            this(start, end);
+            this.moved = moved;
+        }
+    }
+}
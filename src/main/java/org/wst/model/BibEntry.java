@@ -0,0 +1,308 @@
+package org.wst.model;
+
+import java.util.Arrays;
+
+/**
+ * A single BibTeX entry, kept as a char range of the text it was found in
+ * <p>
+ * Only the offsets of the type, the keyword and the body are known when it is created.
+ * The borders of the fields are found the first time a field is asked for and kept in a single int array,
+ * four offsets per field. Strings of names and values are only created when they are asked for
+ * <p>
+ * The text must not change while the entry is used. Entries of a loaded file share the String of the
+ * whole file, so a row of the table does not copy its entry
+ */
+public class BibEntry {
+    private final CharSequence text;
+    private final int start, end;
+    private final int typeStart, typeEnd;
+    private final int keyStart, keyEnd;
+    private final int bodyStart;
+    private volatile int[] fields; // nameStart, nameEnd, valueStart, valueEnd of every field
+
+    /**
+     * @param text      text that contains the entry
+     * @param start     offset of the leading '@'
+     * @param end       offset after the closing '}'
+     * @param typeStart offset of the type
+     * @param typeEnd   offset after the type
+     * @param keyStart  offset of the trimmed keyword, -1 for special blocks without keyword
+     * @param keyEnd    offset after the trimmed keyword
+     * @param bodyStart offset after the ',' that ends the keyword
+     */
+    public BibEntry(CharSequence text, int start, int end, int typeStart, int typeEnd,
+                    int keyStart, int keyEnd, int bodyStart) {
+        this.text = text;
+        this.start = start;
+        this.end = end;
+        this.typeStart = typeStart;
+        this.typeEnd = typeEnd;
+        this.keyStart = keyStart;
+        this.keyEnd = keyEnd;
+        this.bodyStart = bodyStart;
+    }
+
+    /**
+     * @return offset of the leading '@' inside the text
+     */
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * @return offset after the closing '}' inside the text
+     */
+    public int getEnd() {
+        return end;
+    }
+
+    /**
+     * @return the raw entry from '@' to the closing '}', the text itself if it is exactly the entry
+     */
+    public String getText() {
+        return text.subSequence(start, end).toString();
+    }
+
+    /**
+     * @return type as written, e.g. "Article"
+     */
+    public String getType() {
+        return text.subSequence(typeStart, typeEnd).toString();
+    }
+
+    /**
+     * @return trimmed keyword or null
+     */
+    public String getKey() {
+        return keyStart < 0 ? null : text.subSequence(keyStart, keyEnd).toString();
+    }
+
+    /**
+     * @return the text that contains the entry, all offsets are positions inside it
+     */
+    public CharSequence getSource() {
+        return text;
+    }
+
+    public int getTypeStart() {
+        return typeStart;
+    }
+
+    public int getTypeEnd() {
+        return typeEnd;
+    }
+
+    /**
+     * @return offset of the trimmed keyword, -1 for special blocks
+     */
+    public int getKeyStart() {
+        return keyStart;
+    }
+
+    public int getKeyEnd() {
+        return keyEnd;
+    }
+
+    public int getFieldCount() {
+        return getFields().length / 4;
+    }
+
+    /**
+     * @param i index of the field, in the order of the text
+     * @return name as written
+     */
+    public String getFieldName(int i) {
+        int[] offsets = getFields();
+        return text.subSequence(offsets[4 * i], offsets[4 * i + 1]).toString();
+    }
+
+    /**
+     * @param i index of the field, in the order of the text
+     * @return raw value with its closures, e.g. {A title} or "A" # b
+     */
+    public String getFieldValue(int i) {
+        int[] offsets = getFields();
+        return text.subSequence(offsets[4 * i + 2], offsets[4 * i + 3]).toString();
+    }
+
+    public int getFieldNameStart(int i) {
+        return getFields()[4 * i];
+    }
+
+    public int getFieldNameEnd(int i) {
+        return getFields()[4 * i + 1];
+    }
+
+    public int getFieldValueStart(int i) {
+        return getFields()[4 * i + 2];
+    }
+
+    public int getFieldValueEnd(int i) {
+        return getFields()[4 * i + 3];
+    }
+
+    /**
+     * @param i    index of the field
+     * @param name field name, case is ignored
+     * @return true if the field has the name, without creating a String
+     */
+    public boolean isField(int i, String name) {
+        int[] offsets = getFields();
+        return nameEquals(offsets[4 * i], offsets[4 * i + 1], name);
+    }
+
+    /**
+     * Only the value of the found field is turned into a String
+     *
+     * @param names field names, case is ignored
+     * @return raw value of the last field with one of the names or null, later fields win like in the table
+     */
+    public String getField(String... names) {
+        int[] offsets = getFields();
+        for (int i = offsets.length - 4; i >= 0; i -= 4) {
+            for (String name : names) {
+                if (nameEquals(offsets[i], offsets[i + 1], name)) {
+                    return text.subSequence(offsets[i + 2], offsets[i + 3]).toString();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param names field names, case is ignored
+     * @return value of the last field with one of the names without closures and with collapsed whitespace, or null
+     */
+    public String getPlainField(String... names) {
+        String value = getField(names);
+        return value == null ? null : removeClosure(value);
+    }
+
+    /**
+     * @return rough heap size in bytes, the text only counts if it is not shared with a whole file
+     */
+    public long estimateBytes() {
+        long bytes = 56;
+        int[] offsets = fields;
+        if (offsets != null) bytes += 16 + 4L * offsets.length;
+        if (text.length() <= end - start + 2) bytes += 40 + 2L * text.length();
+        return bytes;
+    }
+
+    private boolean nameEquals(int from, int to, String name) {
+        if (to - from != name.length()) return false;
+        for (int i = 0; i < name.length(); i++) {
+            char a = text.charAt(from + i), b = name.charAt(i);
+            if (a != b && Character.toLowerCase(a) != Character.toLowerCase(b)) return false;
+        }
+        return true;
+    }
+
+    private int[] getFields() {
+        int[] offsets = fields;
+        if (offsets == null) {
+            offsets = findFields(text, Math.min(bodyStart, end - 1), end - 1);
+            fields = offsets;
+        }
+        return offsets;
+    }
+
+    /**
+     * Splits "name = value, ..." into fields, in a single pass.
+     * A part that is not "name = value" is skipped up to the next ',' outside of braces and quotes
+     *
+     * @param text text that contains the fields
+     * @param from first char of the fields, after the keyword
+     * @param to   index of the closing brace of the entry
+     * @return nameStart, nameEnd, valueStart, valueEnd of every field, names and values are trimmed
+     */
+    public static int[] findFields(CharSequence text, int from, int to) {
+        int[] offsets = new int[32];
+        int count = 0;
+        int i = from;
+        while (i < to) {
+            char c = text.charAt(i);
+            if (c == ',' || Character.isWhitespace(c)) {
+                i++;
+                continue;
+            }
+            int nameStart = i;
+            while (i < to && (c = text.charAt(i)) != '=' && c != ',' && c != '{' && c != '}' && c != '"') i++;
+            if (i >= to || text.charAt(i) != '=') {
+                i = skipValue(text, i, to);
+                continue;
+            }
+            int nameEnd = i;
+            while (nameEnd > nameStart && Character.isWhitespace(text.charAt(nameEnd - 1))) nameEnd--;
+            int valueStart = i + 1;
+            while (valueStart < to && Character.isWhitespace(text.charAt(valueStart))) valueStart++;
+            i = skipValue(text, valueStart, to);
+            int valueEnd = i;
+            while (valueEnd > valueStart && Character.isWhitespace(text.charAt(valueEnd - 1))) valueEnd--;
+            if (nameEnd == nameStart) continue;
+            if (count + 4 > offsets.length) offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+            offsets[count++] = nameStart;
+            offsets[count++] = nameEnd;
+            offsets[count++] = valueStart;
+            offsets[count++] = valueEnd;
+        }
+        return Arrays.copyOf(offsets, count);
+    }
+
+    /**
+     * Escaped chars (\{, \}, \") are skipped, like the BraceMatcher does it
+     *
+     * @return index of the next ',' outside of braces and quotes, or the end
+     */
+    private static int skipValue(CharSequence text, int i, int to) {
+        int braces = 0;
+        boolean quoted = false;
+        for (; i < to; i++) {
+            char c = text.charAt(i);
+            if (c == '\\') i++; // escaped brace or quote
+            else if (c == '{') braces++;
+            else if (c == '}' && braces > 0) braces--;
+            else if (c == '"' && braces == 0) quoted = !quoted;
+            else if (c == ',' && braces == 0 && !quoted) return i;
+        }
+        return to;
+    }
+
+    /**
+     * Removes the closure from the given string
+     * Each value in a Bib-Entry can have 0 to multiple closures,
+     * that are either "" or {} or combinations of those
+     *
+     * @param str string with closure
+     * @return string without closure
+     */
+    public static String removeClosure(String str) {
+        str = collapseWhitespace(str.trim());
+        while ((str.startsWith("{") && str.endsWith("}")) ||
+                (str.startsWith("\"") && str.endsWith("\""))) {
+            str = str.substring(1, str.length() - 1);
+        }
+        return str.trim();
+    }
+
+    /**
+     * @param str any string
+     * @return the string with every run of whitespace (also line breaks) replaced by a single space
+     */
+    public static String collapseWhitespace(String str) {
+        StringBuilder builder = new StringBuilder(str.length());
+        boolean space = false;
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = true;
+            } else {
+                if (space) builder.append(' ');
+                builder.append(c);
+                space = false;
+            }
+        }
+        if (space) builder.append(' ');
+        return builder.toString();
+    }
+}
@@ -0,0 +1,275 @@
+package org.wst.model;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Immutable text made of pieces, each piece is a range of the original file content
+ * or of an append-only buffer that holds all text added later
+ * <p>
+ * An edit never copies the text, it only builds a new list of pieces, so an edit costs O(pieces)
+ * instead of O(length). All versions of a document share the same buffers, keeping old versions
+ * (e.g. for undo) only costs their piece lists
+ * <p>
+ * Not thread safe, versions that share a buffer must only be edited by one thread at a time
+ */
+public final class PieceTable implements CharSequence {
+    private final String original;
+    private final AddBuffer added;
+    private final Piece[] pieces;
+    private final int[] offsets; // offsets[i] = start of piece i inside the text, offsets[pieces.length] = length
+
+    public PieceTable(String original) {
+        this(original, new AddBuffer(), original.isEmpty() ? new Piece[0] : new Piece[]{new Piece(false, 0, original.length())});
+    }
+
+    private PieceTable(String original, AddBuffer added, Piece[] pieces) {
+        this.original = original;
+        this.added = added;
+        this.pieces = pieces;
+        this.offsets = new int[pieces.length + 1];
+        for (int i = 0; i < pieces.length; i++) {
+            offsets[i + 1] = offsets[i] + pieces[i].length;
+        }
+    }
+
+    @Override
+    public int length() {
+        return offsets[pieces.length];
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length()) throw new IndexOutOfBoundsException(index);
+        int i = pieceAt(index);
+        Piece piece = pieces[i];
+        int pos = piece.start + index - offsets[i];
+        return piece.added ? added.chars[pos] : original.charAt(pos);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return substring(start, end);
+    }
+
+    /**
+     * @return copy of the text in [start, end)
+     */
+    public String substring(int start, int end) {
+        checkRange(start, end);
+        StringBuilder builder = new StringBuilder(end - start);
+        forEachRange(start, end, (piece, from, to) -> {
+            if (piece.added) builder.append(added.chars, from, to - from);
+            else builder.append(original, from, to);
+        });
+        return builder.toString();
+    }
+
+    public boolean startsWith(String prefix, int offset) {
+        if (offset < 0 || offset + prefix.length() > length()) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (charAt(offset + i) != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compares piece by piece, without a lookup per char
+     *
+     * @return length of the longest common prefix of this text and the other one
+     */
+    public int commonPrefixLength(CharSequence other) {
+        int pos = 0;
+        for (Piece piece : pieces) {
+            for (int i = 0; i < piece.length; i++, pos++) {
+                if (pos == other.length()) return pos;
+                char c = piece.added ? added.chars[piece.start + i] : original.charAt(piece.start + i);
+                if (c != other.charAt(pos)) return pos;
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * @param limit maximal length to compare
+     * @return length of the longest common suffix of this text and the other one, at most limit
+     */
+    public int commonSuffixLength(CharSequence other, int limit) {
+        int count = 0;
+        int otherPos = other.length();
+        for (int p = pieces.length - 1; p >= 0; p--) {
+            Piece piece = pieces[p];
+            for (int i = piece.length - 1; i >= 0; i--, count++) {
+                if (count == limit || otherPos == 0) return count;
+                char c = piece.added ? added.chars[piece.start + i] : original.charAt(piece.start + i);
+                if (c != other.charAt(--otherPos)) return count;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return new version with [start, end) replaced by the given text
+     */
+    public PieceTable replace(int start, int end, CharSequence text) {
+        checkRange(start, end);
+        return builder().append(this, 0, start).append(text).append(this, end, length()).build();
+    }
+
+    public PieceTable insert(int offset, CharSequence text) {
+        return replace(offset, offset, text);
+    }
+
+    public PieceTable delete(int start, int end) {
+        return replace(start, end, "");
+    }
+
+    /**
+     * @return builder for a new version that shares the buffers of this one
+     */
+    public Builder builder() {
+        return new Builder(this);
+    }
+
+    /**
+     * Writes the text piece by piece, without building a String of the whole text
+     *
+     * @param writer writer to write to, is not flushed or closed
+     * @throws IOException if the writer fails
+     */
+    public void writeTo(Writer writer) throws IOException {
+        for (Piece piece : pieces) {
+            if (piece.added) writer.write(added.chars, piece.start, piece.length);
+            else writer.write(original, piece.start, piece.length);
+        }
+    }
+
+    /**
+     * @return amount of pieces, a high count makes charAt slower
+     */
+    public int getPieceCount() {
+        return pieces.length;
+    }
+
+    @Override
+    public String toString() {
+        return substring(0, length());
+    }
+
+    private int pieceAt(int index) {
+        int i = Arrays.binarySearch(offsets, 0, pieces.length, index);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    private void checkRange(int start, int end) {
+        if (start < 0 || end > length() || start > end) {
+            throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + length());
+        }
+    }
+
+    private void forEachRange(int start, int end, RangeConsumer consumer) {
+        if (start == end) return;
+        for (int i = pieceAt(start); i < pieces.length && offsets[i] < end; i++) {
+            Piece piece = pieces[i];
+            int from = piece.start + Math.max(0, start - offsets[i]);
+            int to = piece.start + Math.min(piece.length, end - offsets[i]);
+            consumer.accept(piece, from, to);
+        }
+    }
+
+    private interface RangeConsumer {
+        void accept(Piece piece, int from, int to);
+    }
+
+    /**
+     * Builds a new version from ranges of other versions and new text, in a single pass
+     * Ranges must come from versions with the same buffers as the one the builder was made from
+     */
+    public static final class Builder {
+        private final String original;
+        private final AddBuffer added;
+        private Piece[] pieces = new Piece[16];
+        private int count;
+        private int length;
+
+        private Builder(PieceTable base) {
+            this.original = base.original;
+            this.added = base.added;
+        }
+
+        public Builder append(PieceTable table, int start, int end) {
+            if (table.added != added) throw new IllegalArgumentException("Table does not share the buffers of this builder");
+            table.checkRange(start, end);
+            table.forEachRange(start, end, (piece, from, to) -> add(piece.added, from, to - from));
+            return this;
+        }
+
+        public Builder append(CharSequence text) {
+            if (text.length() > 0) add(true, added.append(text), text.length());
+            return this;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        public PieceTable build() {
+            return new PieceTable(original, added, Arrays.copyOf(pieces, count));
+        }
+
+        private void add(boolean isAdded, int start, int len) {
+            if (len == 0) return;
+            length += len;
+            if (count > 0) { // continue the last piece, if the ranges are next to each other
+                Piece last = pieces[count - 1];
+                if (last.added == isAdded && last.start + last.length == start) {
+                    pieces[count - 1] = new Piece(isAdded, last.start, last.length + len);
+                    return;
+                }
+            }
+            if (count == pieces.length) pieces = Arrays.copyOf(pieces, count * 2);
+            pieces[count++] = new Piece(isAdded, start, len);
+        }
+    }
+
+    private static final class Piece {
+        private final boolean added;
+        private final int start;
+        private final int length;
+
+        Piece(boolean added, int start, int length) {
+            this.added = added;
+            this.start = start;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Append-only char buffer, chars that were written are never changed,
+     * so all versions can read from it while new text is added
+     */
+    private static final class AddBuffer {
+        private char[] chars = new char[1024];
+        private int length;
+
+        /**
+         * @return offset of the appended text
+         */
+        int append(CharSequence text) {
+            int start = length;
+            if (length + text.length() > chars.length) {
+                chars = Arrays.copyOf(chars, Math.max(chars.length * 2, length + text.length()));
+            }
+            if (text instanceof String) {
+                ((String) text).getChars(0, text.length(), chars, length);
+            } else {
+                for (int i = 0; i < text.length(); i++) {
+                    chars[length + i] = text.charAt(i);
+                }
+            }
+            length += text.length();
+            return start;
+        }
+    }
+}
@@ -5,8 +5,12 @@ package org.wst.model;
  * Every row in the table requires an entry
  * The entries are also used to store additional information's
  * like URL, DOI and type OR an Error if there is a problem during creation
+ * <p>
+ * A row of a parsed entry is a view over its BibEntry: only the keyword is read at once,
+ * the other values are cut out and cleaned the first time they are shown
  */
 public class TableEntry {
+    private BibEntry entry;
     private String keyword;
     private String type;
     private String title;
@@ -29,6 +33,14 @@ public class TableEntry {
         this.error = error;
     }
 
+    /**
+     * @param entry parsed entry with a keyword
+     */
+    public TableEntry(BibEntry entry) {
+        this.entry = entry;
+        this.keyword = entry.getKey();
+    }
+
     public TableEntry(String keyword, String type, String title, String author, String year, String url, String doi) {
         this.keyword = keyword;
         this.type = type;
@@ -55,6 +67,7 @@ public class TableEntry {
     }
 
     public String getType() {
+        if (type == null && entry != null) type = entry.getType().toUpperCase();
         return type;
     }
 
@@ -63,6 +76,7 @@ public class TableEntry {
     }
 
     public String getTitle() {
+        if (title == null && entry != null) title = plain("title");
         return title;
     }
 
@@ -71,6 +85,7 @@ public class TableEntry {
     }
 
     public String getAuthor() {
+        if (author == null && entry != null) author = plain("author");
         return author;
     }
 
@@ -79,6 +94,7 @@ public class TableEntry {
     }
 
     public String getYear() {
+        if (year == null && entry != null) year = year();
         return year;
     }
 
@@ -91,6 +107,7 @@ public class TableEntry {
     }
 
     public String getUrl() {
+        if (url == null && entry != null) url = plain("url", "opturl");
         return url;
     }
 
@@ -99,10 +116,50 @@ public class TableEntry {
     }
 
     public String getDoi() {
+        if (doi == null && entry != null) doi = plain("doi", "optdoi");
         return doi;
     }
 
     public void setDoi(String doi) {
         this.doi = doi;
     }
+
+    /**
+     * @return the parsed entry of this row, null for rows that were created from single values
+     */
+    public BibEntry getEntry() {
+        return entry;
+    }
+
+    /**
+     * @return rough heap size in bytes, values that were not shown yet do not count
+     */
+    public long estimateBytes() {
+        long bytes = 48 + (entry == null ? 0 : entry.estimateBytes());
+        for (String value : new String[]{keyword, type, title, author, year, url, doi}) {
+            if (value != null) bytes += 40 + 2L * value.length();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return value of the last field with one of the names without closures, "none" if there is none
+     */
+    private String plain(String... names) {
+        String value = entry.getPlainField(names);
+        return value == null ? "none" : value;
+    }
+
+    /**
+     * Years are often written as {2002}, "2002}" or 2002, all closures and commas are removed
+     */
+    private String year() {
+        String value = entry.getField("year");
+        if (value == null) return "none";
+        StringBuilder builder = new StringBuilder(value.length());
+        for (char c : BibEntry.collapseWhitespace(value).toCharArray()) {
+            if (c != '"' && c != '{' && c != '}' && c != ',') builder.append(c);
+        }
+        return builder.toString().trim();
+    }
 }
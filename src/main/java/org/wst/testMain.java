@@ -1,13 +1,39 @@
 package org.wst;
 
+import org.wst.helper.BibLexer;
 import org.wst.helper.FormatChecker;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Small test class to test some basic strings that will be
  * processed through the FormatChecker...
  */
 public class testMain {
+
+    /**
+     * Inputs that made the old regular expressions slow, each case is a prefix and a part that is repeated.
+     * Entries followed by many braces made the brace fix-up loop quadratic
+     */
+    private final static String[][] pathologicalInputs = {
+            {"no @ at all", "", "abc def "},
+            {"only @", "", "@"},
+            {"mail addresses", "", "word@word "},
+            {"heads without key", "", "@misc{"},
+            {"heads without end", "", "@misc{k,"},
+            {"nested heads", "", "@misc{k,{"},
+            {"deep braces", "@misc{k, a = ", "{"},
+            {"open fields", "", "@misc{k, a = {b}, "},
+            {"closers after entry", "@misc{k, a = b}", "}"},
+            {"groups after entry", "@misc{k, a = b}", " {x}"},
+            {"broken lines", "", "@misc{k, a = {b\n"},
+    };
+    private final static double maxGrowth = 20;
+
     public static void main(String[] args) {
+        checkLinearTime();
+
         String test = "ANY TEXT THAT IS NOT BIBTEX " +
                 " @misc     {   patashnik-123bibtexing ,\n" +
                 "       author = \"Oren Patashnik\",\n" +
@@ -48,4 +74,44 @@ public class testMain {
  */
 
     }
+
+    /**
+     * Times the lexer on every pathological input at 1x and 8x the size,
+     * linear time means about 8 times slower, a quadratic scanner would be about 64 times slower
+     * A case that grows more than maxGrowth is measured again, so a single slow run does not fail it
+     *
+     * @throws AssertionError with the names of all cases that grew super-linear
+     */
+    private static void checkLinearTime() {
+        int size = 200_000;
+        List<String> failed = new ArrayList<>();
+        for (String[] input : pathologicalInputs) {
+            String small = repeat(input[1], input[2], size);
+            String large = repeat(input[1], input[2], 8 * size);
+            if (growth(small, large) > maxGrowth && growth(small, large) > maxGrowth) failed.add(input[0]);
+        }
+        if (!failed.isEmpty()) throw new AssertionError("Super-linear time for: " + failed);
+    }
+
+    private static double growth(String small, String large) {
+        return (double) bestTime(large) / Math.max(1, bestTime(small));
+    }
+
+    private static String repeat(String prefix, String part, int length) {
+        StringBuilder builder = new StringBuilder(length + part.length()).append(prefix);
+        while (builder.length() < length) builder.append(part);
+        return builder.toString();
+    }
+
+    private static long bestTime(String text) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            long start = System.nanoTime();
+            FormatChecker.basicBibTeXCheck(text);
+            BibLexer lexer = new BibLexer(text);
+            while (lexer.next() != null) ;
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
 }